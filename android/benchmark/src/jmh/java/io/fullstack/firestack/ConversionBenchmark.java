@@ -0,0 +1,76 @@
+package io.fullstack.firestack;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Cost of the conversions that sit between the bridge and Firebase, over
+ * trees of different width and depth (see SnapshotTrees for the shapes).
+ *
+ * castSnapshotValue + getChildKeys is the original snapshot path, kept in
+ * FirestackUtils as the baseline for serializeSnapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversionBenchmark {
+  @Param({"10x1", "1000x1", "10000x1", "10x3", "100x2", "30x3", "4x8"})
+  public String shape;
+
+  private ReadableMap readableMap;
+  private DataSnapshot snapshot;
+
+  @Setup
+  public void setup() {
+    readableMap = SnapshotTrees.readableMap(shape);
+    snapshot = SnapshotTrees.snapshot(shape);
+  }
+
+  @Benchmark
+  public Map<String, Object> recursivelyDeconstructReadableMap() {
+    return FirestackUtils.recursivelyDeconstructReadableMap(readableMap);
+  }
+
+  @Benchmark
+  public WritableMap dataSnapshotToMap() {
+    return FirestackUtils.dataSnapshotToMap("value", "/bench", snapshot);
+  }
+
+  @Benchmark
+  public WritableMap serializeSnapshot() {
+    return FirestackSnapshotSerializer.serializeSnapshot(snapshot);
+  }
+
+  @Benchmark
+  public Object castSnapshotValue() {
+    return FirestackUtils.castSnapshotValue(snapshot);
+  }
+
+  @Benchmark
+  public WritableArray getChildKeys() {
+    return FirestackUtils.getChildKeys(snapshot);
+  }
+
+  @Benchmark
+  public Object[] castSnapshotValueWithChildKeys() {
+    return new Object[] {
+      FirestackUtils.castSnapshotValue(snapshot),
+      FirestackUtils.getChildKeys(snapshot)
+    };
+  }
+}
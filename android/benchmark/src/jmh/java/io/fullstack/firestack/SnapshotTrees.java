@@ -0,0 +1,86 @@
+package io.fullstack.firestack;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Synthetic trees for the benchmarks. A shape of "WxD" is a tree that is
+ * W children wide at every level and D levels deep, with leaves cycling
+ * through the value types the database returns (Long, Double, String,
+ * Boolean), so a 10x3 tree holds 1000 leaves.
+ */
+class SnapshotTrees {
+  private SnapshotTrees() {}
+
+  public static int width(final String shape) {
+    return Integer.parseInt(shape.substring(0, shape.indexOf('x')));
+  }
+
+  public static int depth(final String shape) {
+    return Integer.parseInt(shape.substring(shape.indexOf('x') + 1));
+  }
+
+  public static Map<String, Object> tree(final String shape) {
+    return tree(width(shape), depth(shape), new int[1]);
+  }
+
+  public static DataSnapshot snapshot(final String shape) {
+    return new DataSnapshot("root", tree(shape));
+  }
+
+  /**
+   * The same tree as a bridge map, the way a set/update payload arrives
+   * from javascript (every number is a double there)
+   */
+  public static WritableMap readableMap(final String shape) {
+    return toWritableMap(tree(shape));
+  }
+
+  private static Map<String, Object> tree(final int width, final int depth, final int[] counter) {
+    Map<String, Object> node = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < width; i++) {
+      String key = "k" + i;
+      if (depth > 1) {
+        node.put(key, tree(width, depth - 1, counter));
+      } else {
+        node.put(key, leaf(counter[0]++));
+      }
+    }
+    return node;
+  }
+
+  private static Object leaf(final int n) {
+    switch (n % 4) {
+      case 0:
+        return (long) n;
+      case 1:
+        return n + 0.5d;
+      case 2:
+        return "value-" + n;
+      default:
+        return n % 8 == 3;
+    }
+  }
+
+  private static WritableMap toWritableMap(final Map<String, Object> tree) {
+    WritableMap map = Arguments.createMap();
+    for (Map.Entry<String, Object> entry : tree.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof Map) {
+        map.putMap(entry.getKey(), toWritableMap((Map<String, Object>) value));
+      } else if (value instanceof Number) {
+        map.putDouble(entry.getKey(), ((Number) value).doubleValue());
+      } else if (value instanceof Boolean) {
+        map.putBoolean(entry.getKey(), (Boolean) value);
+      } else {
+        map.putString(entry.getKey(), (String) value);
+      }
+    }
+    return map;
+  }
+}
@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * There is no main looper in the benchmarks; posted work never runs
+ */
+public class Handler {
+  public Handler(Looper looper) {}
+
+  public boolean post(Runnable r) { return true; }
+  public boolean postDelayed(Runnable r, long delayMillis) { return true; }
+  public void removeCallbacks(Runnable r) {}
+}
@@ -0,0 +1,30 @@
+package com.facebook.react.bridge;
+
+/**
+ * The real WritableNativeMap/Array need the react-native .so; the ones
+ * handed out here keep the same contract on plain collections.
+ */
+public class Arguments {
+  public static WritableMap createMap() {
+    return new WritableNativeMap();
+  }
+
+  public static WritableArray createArray() {
+    return new WritableNativeArray();
+  }
+
+  static ReadableType typeOf(Object value) {
+    if (value == null) {
+      return ReadableType.Null;
+    } else if (value instanceof Boolean) {
+      return ReadableType.Boolean;
+    } else if (value instanceof Number) {
+      return ReadableType.Number;
+    } else if (value instanceof String) {
+      return ReadableType.String;
+    } else if (value instanceof ReadableMap) {
+      return ReadableType.Map;
+    }
+    return ReadableType.Array;
+  }
+}
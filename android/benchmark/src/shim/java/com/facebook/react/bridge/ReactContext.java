@@ -0,0 +1,14 @@
+package com.facebook.react.bridge;
+
+/**
+ * Only what sending events touches; the benchmarks never emit
+ */
+public class ReactContext {
+  public boolean hasActiveCatalystInstance() {
+    return false;
+  }
+
+  public <T> T getJSModule(Class<T> jsInterface) {
+    throw new UnsupportedOperationException("No javascript in the benchmarks");
+  }
+}
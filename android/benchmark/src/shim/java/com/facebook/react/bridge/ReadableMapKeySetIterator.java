@@ -0,0 +1,6 @@
+package com.facebook.react.bridge;
+
+public interface ReadableMapKeySetIterator {
+  boolean hasNextKey();
+  String nextKey();
+}
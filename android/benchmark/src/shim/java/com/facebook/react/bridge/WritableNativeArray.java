@@ -0,0 +1,22 @@
+package com.facebook.react.bridge;
+
+import java.util.ArrayList;
+
+public class WritableNativeArray extends ArrayList<Object> implements WritableArray {
+  public boolean isNull(int index) { return get(index) == null; }
+  public boolean getBoolean(int index) { return (Boolean) get(index); }
+  public double getDouble(int index) { return ((Number) get(index)).doubleValue(); }
+  public int getInt(int index) { return ((Number) get(index)).intValue(); }
+  public String getString(int index) { return (String) get(index); }
+  public ReadableArray getArray(int index) { return (ReadableArray) get(index); }
+  public ReadableMap getMap(int index) { return (ReadableMap) get(index); }
+  public ReadableType getType(int index) { return Arguments.typeOf(get(index)); }
+
+  public void pushNull() { add(null); }
+  public void pushBoolean(boolean value) { add(value); }
+  public void pushDouble(double value) { add(value); }
+  public void pushInt(int value) { add(value); }
+  public void pushString(String value) { add(value); }
+  public void pushArray(WritableArray array) { add(array); }
+  public void pushMap(WritableMap map) { add(map); }
+}
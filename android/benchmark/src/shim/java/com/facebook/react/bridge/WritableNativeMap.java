@@ -0,0 +1,36 @@
+package com.facebook.react.bridge;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Same name as the native map, since castSnapshotValue switches on it
+ */
+public class WritableNativeMap extends LinkedHashMap<String, Object> implements WritableMap {
+  public boolean hasKey(String name) { return containsKey(name); }
+  public boolean isNull(String name) { return get(name) == null; }
+  public boolean getBoolean(String name) { return (Boolean) get(name); }
+  public double getDouble(String name) { return ((Number) get(name)).doubleValue(); }
+  public int getInt(String name) { return ((Number) get(name)).intValue(); }
+  public String getString(String name) { return (String) get(name); }
+  public ReadableArray getArray(String name) { return (ReadableArray) get(name); }
+  public ReadableMap getMap(String name) { return (ReadableMap) get(name); }
+  public ReadableType getType(String name) { return Arguments.typeOf(get(name)); }
+
+  public ReadableMapKeySetIterator keySetIterator() {
+    final Iterator<String> keys = keySet().iterator();
+    return new ReadableMapKeySetIterator() {
+      public boolean hasNextKey() { return keys.hasNext(); }
+      public String nextKey() { return keys.next(); }
+    };
+  }
+
+  public void putNull(String key) { put(key, null); }
+  public void putBoolean(String key, boolean value) { put(key, value); }
+  public void putDouble(String key, double value) { put(key, value); }
+  public void putInt(String key, int value) { put(key, value); }
+  public void putString(String key, String value) { put(key, value); }
+  public void putArray(String key, WritableArray value) { put(key, value); }
+  public void putMap(String key, WritableMap value) { put(key, value); }
+  public void merge(ReadableMap source) { putAll((WritableNativeMap) source); }
+}
@@ -0,0 +1,110 @@
+package com.google.firebase.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A DataSnapshot over an in-memory tree: a Map for a node with children,
+ * anything else for a leaf. Children are built once up front so iterating
+ * them costs what the SDK's does.
+ *
+ * Like the SDK, children are ordered by key (integer keys numerically,
+ * before all other keys) and getValue() returns a List, with null in the
+ * gaps, for a node whose keys are all integers when more than half of the
+ * indexes up to the largest are present.
+ */
+public class DataSnapshot {
+  private static final Comparator<DataSnapshot> KEY_ORDER = new Comparator<DataSnapshot>() {
+    @Override
+    public int compare(DataSnapshot a, DataSnapshot b) {
+      Integer ia = intKey(a.mKey);
+      Integer ib = intKey(b.mKey);
+      if (ia != null && ib != null) {
+        return ia.compareTo(ib);
+      } else if (ia != null) {
+        return -1;
+      } else if (ib != null) {
+        return 1;
+      }
+      return a.mKey.compareTo(b.mKey);
+    }
+  };
+
+  private final String mKey;
+  private final Object mValue;
+  private final List<DataSnapshot> mChildren = new ArrayList<DataSnapshot>();
+
+  public DataSnapshot(final String key, final Object value) {
+    mKey = key;
+    mValue = value;
+    if (value instanceof Map) {
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        mChildren.add(new DataSnapshot(entry.getKey(), entry.getValue()));
+      }
+      Collections.sort(mChildren, KEY_ORDER);
+    }
+  }
+
+  public String getKey() {
+    return mKey;
+  }
+
+  public boolean exists() {
+    return mValue != null;
+  }
+
+  public boolean hasChildren() {
+    return !mChildren.isEmpty();
+  }
+
+  public long getChildrenCount() {
+    return mChildren.size();
+  }
+
+  public Iterable<DataSnapshot> getChildren() {
+    return mChildren;
+  }
+
+  public Object getPriority() {
+    return null;
+  }
+
+  public Object getValue() {
+    if (mChildren.isEmpty()) {
+      return mValue;
+    }
+    Map<String, Object> value = new LinkedHashMap<String, Object>();
+    boolean allIntegerKeys = true;
+    int maxKey = 0;
+    for (DataSnapshot child : mChildren) {
+      value.put(child.getKey(), child.getValue());
+      Integer index = intKey(child.getKey());
+      if (index == null) {
+        allIntegerKeys = false;
+      } else {
+        maxKey = Math.max(maxKey, index);
+      }
+    }
+    if (allIntegerKeys && maxKey < 2 * mChildren.size()) {
+      List<Object> array = new ArrayList<Object>(maxKey + 1);
+      for (int i = 0; i <= maxKey; i++) {
+        array.add(value.get("" + i));
+      }
+      return array;
+    }
+    return value;
+  }
+
+  // the SDK's integer keys: no leading zeros, within int range
+  private static Integer intKey(final String key) {
+    if (!key.matches("-?(0|[1-9][0-9]{0,9})") || key.equals("-0")) {
+      return null;
+    }
+    long value = Long.parseLong(key);
+    return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? null : (int) value;
+  }
+}
@@ -0,0 +1,269 @@
+package io.fullstack.firestack;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Generated trees sent through every value mode (plain, diff and chunked)
+ * must reach javascript in the shape DataSnapshot.getValue() gives them:
+ * array-like nodes as arrays, everything else as maps.
+ */
+public class SnapshotShapeTest {
+  private static final int TREES = 500;
+  private static final long SEED = 0x5eed;
+
+  private final Random mRandom = new Random(SEED);
+
+  @Test
+  public void plainSerializerMatchesGetValue() {
+    for (int i = 0; i < TREES; i++) {
+      DataSnapshot snapshot = snapshot(tree(3));
+      WritableMap data = FirestackSnapshotSerializer.serializeSnapshot(snapshot);
+      assertEquals(describe(snapshot), normalize(snapshot.getValue()), normalize(((Map) data).get("value")));
+    }
+  }
+
+  @Test
+  public void firstDiffMatchesGetValue() {
+    for (int i = 0; i < TREES; i++) {
+      DataSnapshot snapshot = snapshot(tree(3));
+      WritableArray ops = FirestackSnapshotDiff.diff(null, FirestackSnapshotDiff.toTree(snapshot));
+      assertEquals(describe(snapshot), normalize(snapshot.getValue()), applyDiff(null, ops));
+    }
+  }
+
+  @Test
+  public void diffBetweenTreesMatchesGetValue() {
+    for (int i = 0; i < TREES; i++) {
+      Map<String, Object> previous = tree(3);
+      Map<String, Object> next = i % 4 == 0 ? tree(3) : mutate(previous);
+      DataSnapshot before = snapshot(previous);
+      DataSnapshot after = snapshot(next);
+
+      WritableArray ops = FirestackSnapshotDiff.diff(
+        FirestackSnapshotDiff.toTree(before), FirestackSnapshotDiff.toTree(after));
+      Object value = applyDiff(normalize(before.getValue()), ops);
+      assertEquals(describe(before) + " -> " + describe(after), normalize(after.getValue()), value);
+    }
+  }
+
+  @Test
+  public void chunksMatchGetValue() {
+    for (int i = 0; i < TREES; i++) {
+      DataSnapshot snapshot = snapshot(tree(3));
+      int chunkSize = 1 + mRandom.nextInt(5);
+      assertEquals(describe(snapshot) + " in chunks of " + chunkSize,
+        normalize(snapshot.getValue()), joinChunks(snapshot, chunkSize));
+    }
+  }
+
+  // the same loop as FirestackDBReference.emitValueChunks, with the chunks
+  // put back together the way a javascript consumer would
+  private Object joinChunks(final DataSnapshot snapshot, final int chunkSize) {
+    boolean isArray = FirestackSnapshotSerializer.arrayMaxIndex(snapshot) >= 0;
+    List<Object> array = new ArrayList<Object>();
+    Map<String, Object> map = new HashMap<String, Object>();
+    Iterator<DataSnapshot> children = snapshot.getChildren().iterator();
+    int offset = 0;
+    while (children.hasNext()) {
+      WritableMap chunk = FirestackSnapshotSerializer.serializeHeader(snapshot);
+      int next = FirestackSnapshotSerializer.putChunk(chunk, children, chunkSize, isArray, offset);
+      Object value = normalize(((Map) chunk).get("value"));
+      if (isArray) {
+        assertEquals(offset, array.size());
+        array.addAll((List<Object>) value);
+      } else {
+        map.putAll((Map<String, Object>) value);
+      }
+      offset = next;
+    }
+    return isArray ? array : map;
+  }
+
+  // mirrors Database._applyDiff in lib/modules/database.js
+  private static Object applyDiff(final Object previous, final WritableArray ops) {
+    Object value = copy(previous);
+    for (Object o : (List<Object>) ops) {
+      Map<String, Object> op = (Map<String, Object>) o;
+      String path = (String) op.get("path");
+      boolean set = "set".equals(op.get("op"));
+      Object opValue = normalize(op.get("value"));
+      if (path.length() == 0) {
+        value = set ? opValue : null;
+        continue;
+      }
+      String[] keys = path.split("/");
+      if (!(value instanceof Map) && !(value instanceof List)) {
+        value = new HashMap<String, Object>();
+      }
+      Object node = value;
+      for (int i = 0; i < keys.length - 1; i++) {
+        Object child = get(node, keys[i]);
+        if (!(child instanceof Map) && !(child instanceof List)) {
+          child = new HashMap<String, Object>();
+          put(node, keys[i], child);
+        }
+        node = child;
+      }
+      String last = keys[keys.length - 1];
+      if (set) {
+        put(node, last, opValue);
+      } else if (node instanceof Map) {
+        ((Map<String, Object>) node).remove(last);
+      } else {
+        put(node, last, null);
+      }
+    }
+    return value;
+  }
+
+  private static Object get(final Object node, final String key) {
+    if (node instanceof List) {
+      int index = Integer.parseInt(key);
+      List<Object> list = (List<Object>) node;
+      return index < list.size() ? list.get(index) : null;
+    }
+    return ((Map<String, Object>) node).get(key);
+  }
+
+  private static void put(final Object node, final String key, final Object value) {
+    if (node instanceof List) {
+      int index = Integer.parseInt(key);
+      List<Object> list = (List<Object>) node;
+      while (list.size() <= index) {
+        list.add(null);
+      }
+      list.set(index, value);
+    } else {
+      ((Map<String, Object>) node).put(key, value);
+    }
+  }
+
+  private static Object copy(final Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> copy = new HashMap<String, Object>();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        copy.put(entry.getKey(), copy(entry.getValue()));
+      }
+      return copy;
+    } else if (value instanceof List) {
+      List<Object> copy = new ArrayList<Object>();
+      for (Object item : (List<Object>) value) {
+        copy.add(copy(item));
+      }
+      return copy;
+    }
+    return value;
+  }
+
+  // javascript has one number type, and map order doesn't matter
+  private static Object normalize(final Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> normalized = new HashMap<String, Object>();
+      for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+        normalized.put(entry.getKey(), normalize(entry.getValue()));
+      }
+      return normalized;
+    } else if (value instanceof List) {
+      List<Object> normalized = new ArrayList<Object>();
+      for (Object item : (List<Object>) value) {
+        normalized.add(normalize(item));
+      }
+      return normalized;
+    } else if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    return value;
+  }
+
+  private static DataSnapshot snapshot(final Map<String, Object> tree) {
+    return new DataSnapshot("root", tree);
+  }
+
+  private static String describe(final DataSnapshot snapshot) {
+    return String.valueOf(FirestackSnapshotDiff.toTree(snapshot));
+  }
+
+  // a node whose keys are dense indexes, sparse indexes, numeric but too
+  // sparse for an array, names, or a mix
+  private Map<String, Object> tree(final int depth) {
+    Map<String, Object> node = new LinkedHashMap<String, Object>();
+    int size = 1 + mRandom.nextInt(6);
+    int kind = mRandom.nextInt(5);
+    for (int i = 0; i < size; i++) {
+      String key;
+      switch (kind) {
+        case 0:
+          key = String.valueOf(i);
+          break;
+        case 1:
+          key = String.valueOf(i + mRandom.nextInt(2) * i);
+          break;
+        case 2:
+          key = String.valueOf(3 * i + 4 * size);
+          break;
+        case 3:
+          key = "k" + i;
+          break;
+        default:
+          key = mRandom.nextBoolean() ? String.valueOf(i) : "k" + i;
+          break;
+      }
+      node.put(key, depth > 1 && mRandom.nextInt(3) == 0 ? tree(depth - 1) : leaf());
+    }
+    return node;
+  }
+
+  private Object leaf() {
+    switch (mRandom.nextInt(4)) {
+      case 0:
+        return (long) mRandom.nextInt(1000);
+      case 1:
+        return mRandom.nextInt(1000) + 0.5d;
+      case 2:
+        return "v" + mRandom.nextInt(100);
+      default:
+        return mRandom.nextBoolean();
+    }
+  }
+
+  // a copy with a few leaves changed, keys removed and keys added, which
+  // may turn an array-like node into a map or the other way round
+  private Map<String, Object> mutate(final Map<String, Object> tree) {
+    Map<String, Object> copy = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Object> entry : tree.entrySet()) {
+      Object value = entry.getValue();
+      int roll = mRandom.nextInt(10);
+      if (roll == 0 && tree.size() > 1) {
+        continue;
+      } else if (value instanceof Map) {
+        copy.put(entry.getKey(), mutate((Map<String, Object>) value));
+      } else {
+        copy.put(entry.getKey(), roll == 1 ? leaf() : value);
+      }
+    }
+    if (mRandom.nextInt(3) == 0) {
+      String key = mRandom.nextBoolean() ? String.valueOf(tree.size() + mRandom.nextInt(3)) : "n" + mRandom.nextInt(5);
+      copy.put(key, mRandom.nextInt(4) == 0 ? tree(2) : leaf());
+    }
+    if (copy.isEmpty()) {
+      copy.put("0", leaf());
+    }
+    return copy;
+  }
+}
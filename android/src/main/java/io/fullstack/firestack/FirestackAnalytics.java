@@ -102,15 +102,15 @@ class FirestackAnalyticsModule extends ReactContextBaseJavaModule {
       bundle.putString(FirebaseAnalytics.Param.ITEM_NAME, val);
     }
     if (map.containsKey("quantity")) {
-      double val = (double) map.get("quantity");
+      double val = ((Number) map.get("quantity")).doubleValue();
       bundle.putDouble(FirebaseAnalytics.Param.QUANTITY, val);
     }
     if (map.containsKey("price")) {
-      double val = (double) map.get("price");
+      double val = ((Number) map.get("price")).doubleValue();
       bundle.putDouble(FirebaseAnalytics.Param.PRICE, val);
     }
     if (map.containsKey("value")) {
-      double val = (double) map.get("value");
+      double val = ((Number) map.get("value")).doubleValue();
       bundle.putDouble(FirebaseAnalytics.Param.VALUE, val);
     }
     if (map.containsKey("currency")) {
@@ -146,15 +146,15 @@ class FirestackAnalyticsModule extends ReactContextBaseJavaModule {
       bundle.putString(FirebaseAnalytics.Param.TRANSACTION_ID, val);
     }
     if (map.containsKey("number_of_nights")) {
-      long val = (long) map.get("number_of_nights");
+      long val = ((Number) map.get("number_of_nights")).longValue();
       bundle.putLong(FirebaseAnalytics.Param.NUMBER_OF_NIGHTS, val);
     }
     if (map.containsKey("number_of_rooms")) {
-      long val = (long) map.get("number_of_rooms");
+      long val = ((Number) map.get("number_of_rooms")).longValue();
       bundle.putLong(FirebaseAnalytics.Param.NUMBER_OF_ROOMS, val);
     }
     if (map.containsKey("number_of_passengers")) {
-      long val = (long) map.get("number_of_passengers");
+      long val = ((Number) map.get("number_of_passengers")).longValue();
       bundle.putLong(FirebaseAnalytics.Param.NUMBER_OF_PASSENGERS, val);
     }
     if (map.containsKey("travel_class")) {
@@ -166,11 +166,11 @@ class FirestackAnalyticsModule extends ReactContextBaseJavaModule {
       bundle.putString(FirebaseAnalytics.Param.COUPON, val);
     }
     if (map.containsKey("tax")) {
-      long val = (long) map.get("tax");
+      long val = ((Number) map.get("tax")).longValue();
       bundle.putLong(FirebaseAnalytics.Param.TAX, val);
     }
     if (map.containsKey("shipping")) {
-      double val = (double) map.get("shipping");
+      double val = ((Number) map.get("shipping")).doubleValue();
       bundle.putDouble(FirebaseAnalytics.Param.SHIPPING, val);
     }
     if (map.containsKey("group_id")) {
@@ -178,7 +178,7 @@ class FirestackAnalyticsModule extends ReactContextBaseJavaModule {
       bundle.putString(FirebaseAnalytics.Param.GROUP_ID, val);
     }
     if (map.containsKey("level")) {
-      long val = (long) map.get("level");
+      long val = ((Number) map.get("level")).longValue();
       bundle.putLong(FirebaseAnalytics.Param.LEVEL, val);
     }
     if (map.containsKey("character")) {
@@ -186,7 +186,7 @@ class FirestackAnalyticsModule extends ReactContextBaseJavaModule {
       bundle.putString(FirebaseAnalytics.Param.CHARACTER, val);
     }
     if (map.containsKey("score")) {
-      long val = (long) map.get("score");
+      long val = ((Number) map.get("score")).longValue();
       bundle.putLong(FirebaseAnalytics.Param.SCORE, val);
     }
     if (map.containsKey("search_term")) {
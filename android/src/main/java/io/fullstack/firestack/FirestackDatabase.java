@@ -2,11 +2,14 @@ package io.fullstack.firestack;
 
 import android.content.Context;
 import android.util.Log;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import android.net.Uri;
+import android.support.annotation.Nullable;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactApplicationContext;
@@ -14,10 +17,12 @@ import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableMapKeySetIterator;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.LifecycleEventListener;
 
 import com.google.firebase.database.FirebaseDatabase;
 import com.google.firebase.database.DatabaseReference;
@@ -27,29 +32,161 @@ import com.google.firebase.database.Query;
 import com.google.firebase.database.ValueEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
-
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+
+/**
+ * Listener state (subscriber counts, paused, catching up) is changed by
+ * bridge calls on the native modules thread and by Firebase callbacks on
+ * the main thread, so it is only touched while holding the reference's
+ * monitor
+ */
 class FirestackDBReference {
   private static final String TAG = "FirestackDBReference";
 
   private String mPath;
-  private ReadableArray mModifiers;
-  private HashMap<String, Boolean> mListeners = new HashMap<String, Boolean>();
-  private FirestackDatabaseModule mDatabase;
+  private String mHandle;
+  private FirestackQuerySpec mQuerySpec;
+  private HashMap<String, Integer> mListeners = new HashMap<String, Integer>();
   private ChildEventListener mEventListener;
   private ValueEventListener mValueListener;
-  private ValueEventListener mOnceValueListener;
+  private OnceListener mOnceValueListener;
   private ReactContext mReactContext;
-
-  public FirestackDBReference(final ReactContext context, final String path) {
+  private FirestackEventDispatcher mDispatcher;
+  private FirestackSerialExecutor mExecutor;
+  private FirestackSnapshotCache mSnapshotCache;
+  private FirestackListenerRegistry mRegistry;
+  private Query mQuery;
+  private boolean mDiffMode = false;
+  private int mChunkSize = 0;
+  private boolean mForegroundOnly = false;
+  private boolean mPaused = false;
+  private boolean mCatchingUp = false;
+  // bumped by pause, so a catch-up armed before it is not started after
+  private int mCatchUpGeneration = 0;
+  private Object mLastValueTree;
+  private List<String> mLastChildKeys;
+
+  public FirestackDBReference(final ReactContext context,
+                              final String path,
+                              final String handle,
+                              final FirestackQuerySpec querySpec,
+                              final FirestackEventDispatcher dispatcher,
+                              final FirestackSerialExecutor executor,
+                              final FirestackSnapshotCache snapshotCache,
+                              final FirestackListenerRegistry registry) {
     mReactContext = context;
     mPath = path;
+    mHandle = handle;
+    mQuerySpec = querySpec;
+    mDispatcher = dispatcher;
+    mExecutor = executor;
+    mSnapshotCache = snapshotCache;
+    mRegistry = registry;
+  }
+
+  public String getPath() {
+    return mPath;
   }
 
-  public void setModifiers(final ReadableArray modifiers) {
-    mModifiers = modifiers;
+  /**
+   * In diff mode, value events carry a patch against the last emitted tree
+   * rather than the full snapshot
+   */
+  public void setDiffMode(final boolean diffMode) {
+    if (mDiffMode != diffMode) {
+      mLastValueTree = null;
+      mLastChildKeys = null;
+    }
+    mDiffMode = diffMode;
+  }
+
+  /**
+   * With a chunk size, value events are emitted as a sequence of events
+   * holding at most chunkSize children each, followed by a terminal event
+   * with chunk.complete set. Diff mode takes precedence over chunking.
+   */
+  public void setChunkSize(final int chunkSize) {
+    mChunkSize = Math.max(0, chunkSize);
+  }
+
+  /**
+   * Foreground-only listeners are detached while the app is in the
+   * background (see pause/resume)
+   */
+  public void setForegroundOnly(final boolean foregroundOnly) {
+    mForegroundOnly = foregroundOnly;
+  }
+
+  public boolean isForegroundOnly() {
+    return mForegroundOnly;
+  }
+
+  public synchronized boolean isPaused() {
+    return mPaused;
+  }
+
+  /**
+   * Detaches the native listeners but keeps the javascript subscriptions
+   * (and, in diff mode, the last emitted value) so resume can pick up
+   * where we left off
+   */
+  public synchronized void pause() {
+    if (mPaused) {
+      return;
+    }
+    Log.d(TAG, "Pausing listeners on " + mHandle);
+    if (mValueListener != null) {
+      this.detach(mValueListener, "value");
+      this.invalidateCachedValue();
+    }
+    if (mEventListener != null) {
+      this.detach(mEventListener, "child");
+    }
+    mPaused = true;
+    mCatchingUp = false;
+    mCatchUpGeneration++;
   }
 
-  public void addChildEventListener(final String name, final ReadableArray modifiers) {
+  /**
+   * Reattaches the native listeners. Rather than replaying every child or
+   * every change missed while paused, javascript gets a single value event
+   * marked catchUp: the first value event for a value listener, or one
+   * value snapshot of the query for child listeners, whose initial
+   * child_added events are dropped.
+   */
+  public synchronized void resume() {
+    if (!mPaused) {
+      return;
+    }
+    Log.d(TAG, "Resuming listeners on " + mHandle);
+    mPaused = false;
+    mCatchingUp = true;
+
+    if (mValueListener != null) {
+      this.attach(mValueListener);
+    }
+    if (mEventListener != null) {
+      this.attach(mEventListener);
+      // value events are raised after the child events for the same data
+      this.addOnceListener(new ValueEventListener() {
+        @Override
+        public void onDataChange(final DataSnapshot dataSnapshot) {
+          handleCatchUp(dataSnapshot);
+        }
+
+        @Override
+        public void onCancelled(DatabaseError error) {
+          synchronized (FirestackDBReference.this) {
+            mCatchingUp = false;
+          }
+          Log.w(TAG, "Could not catch up " + mHandle + ": " + error.getMessage());
+        }
+      });
+    }
+  }
+
+  public synchronized void addChildEventListener(final String name) {
     final FirestackDBReference self = this;
 
     if (mEventListener == null) {
@@ -79,42 +216,125 @@ class FirestackDBReference {
           self.handleDatabaseError(name, mPath, error);
         }
       };
+
+      // a paused reference attaches it on resume
+      if (!mPaused) {
+        this.attach(mEventListener);
+      }
     }
 
-    Query ref = this.getDatabaseQueryAtPathAndModifiers(modifiers);
-    ref.addChildEventListener(mEventListener);
-    this.setListeningTo(mPath, name);
+    this.setListeningTo(name);
   }
 
-  public void addValueEventListener(final String name, final ReadableArray modifiers) {
+  public synchronized void addValueEventListener() {
     final FirestackDBReference self = this;
 
-    mValueListener = new ValueEventListener() {
+    if (mValueListener == null) {
+      mValueListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+          self.handleDatabaseEvent("value", mPath, dataSnapshot);
+        }
+
+        @Override
+        public void onCancelled(DatabaseError error) {
+          self.invalidateCachedValue();
+          self.handleDatabaseError("value", mPath, error);
+        }
+      };
+
+      if (!mPaused) {
+        this.attach(mValueListener);
+      }
+    }
+
+    this.setListeningTo("value");
+  }
+
+  /**
+   * Firebase only raises child_added for existing children when a listener
+   * is attached, so a subscriber joining a shared child_added listener gets
+   * them in the `initial` array of the response instead
+   */
+  public void addOnceChildrenListener(final WritableMap resp,
+                                      final Callback callback) {
+    this.addOnceListener(new ValueEventListener() {
       @Override
-      public void onDataChange(DataSnapshot dataSnapshot) {
-        self.handleDatabaseEvent("value", mPath, dataSnapshot);
+      public void onDataChange(final DataSnapshot dataSnapshot) {
+        boolean queued = mExecutor.execute(mPath, new Runnable() {
+          @Override
+          public void run() {
+            WritableArray initial = Arguments.createArray();
+            for (DataSnapshot child : dataSnapshot.getChildren()) {
+              WritableMap data = FirestackUtils.dataSnapshotToMap("child_added", mPath, child);
+              data.putString("handle", mHandle);
+              initial.pushMap(data);
+            }
+            resp.putArray("initial", initial);
+            callback.invoke(null, resp);
+          }
+        });
+        if (!queued) {
+          // the listener itself is attached, so still report success
+          Log.w(TAG, "Could not serialize existing children of " + mPath);
+          callback.invoke(null, resp);
+        }
       }
 
       @Override
       public void onCancelled(DatabaseError error) {
-        self.handleDatabaseError("value", mPath, error);
+        // the listener itself is attached, so still report success
+        Log.w(TAG, "Could not read existing children of " + mPath + ": " + error.getMessage());
+        callback.invoke(null, resp);
       }
-    };
-
-    Query ref = this.getDatabaseQueryAtPathAndModifiers(modifiers);
-    ref.addValueEventListener(mValueListener);
-    this.setListeningTo(mPath, "value");
+    });
   }
 
-  public void addOnceValueEventListener(final ReadableArray modifiers,
-                                        final Callback callback) {
-    final FirestackDBReference self = this;
+  /**
+   * Single value read delivered as chunked events on this reference's
+   * handle. The callback only acknowledges the handle, before any chunk.
+   */
+  public void addOnceChunkedValueEventListener(final Callback callback) {
+    WritableMap resp = Arguments.createMap();
+    resp.putString("result", "success");
+    resp.putString("handle", mHandle);
+    callback.invoke(null, resp);
 
-    mOnceValueListener = new ValueEventListener() {
+    mOnceValueListener = this.addOnceListener(new ValueEventListener() {
       @Override
-      public void onDataChange(DataSnapshot dataSnapshot) {
-        WritableMap data = FirestackUtils.dataSnapshotToMap("value", mPath, dataSnapshot);
-        callback.invoke(null, data);
+      public void onDataChange(final DataSnapshot dataSnapshot) {
+        boolean queued = mExecutor.execute(mPath, new Runnable() {
+          @Override
+          public void run() {
+            emitValueChunks("value", mPath, dataSnapshot, false);
+          }
+        });
+        if (!queued) {
+          emitDatabaseError("value", mPath, queueFullError());
+        }
+      }
+
+      @Override
+      public void onCancelled(DatabaseError error) {
+        handleDatabaseError("value", mPath, error);
+      }
+    });
+  }
+
+  public void addOnceValueEventListener(final Callback callback) {
+    mOnceValueListener = this.addOnceListener(new ValueEventListener() {
+      @Override
+      public void onDataChange(final DataSnapshot dataSnapshot) {
+        boolean queued = mExecutor.execute(mPath, new Runnable() {
+          @Override
+          public void run() {
+            WritableMap data = FirestackUtils.dataSnapshotToMap("value", mPath, dataSnapshot);
+            callback.invoke(null, data);
+          }
+        });
+        if (!queued) {
+          callback.invoke(queueFullError());
+        }
       }
 
       @Override
@@ -125,89 +345,444 @@ class FirestackDBReference {
         err.putString("description", error.getMessage());
         callback.invoke(err);
       }
-    };
+    });
+  }
 
-    Query ref = this.getDatabaseQueryAtPathAndModifiers(modifiers);
-    ref.addListenerForSingleValueEvent(mOnceValueListener);
+  /**
+   * Listeners are ref-counted per event name: every javascript subscriber
+   * sharing this query adds one, and the native listener is only detached
+   * once the count for its events drops to zero
+   */
+  public synchronized Boolean isListeningTo(final String evtName) {
+    return mListeners.containsKey(evtName);
   }
 
-  public Boolean isListeningTo(final String path, final String evtName) {
-    String key = this.pathListeningKey(path, evtName);
-    return mListeners.containsKey(key);
+  public synchronized Boolean hasListeners() {
+    return !mListeners.isEmpty();
   }
 
-  /**
-   * Note: these path/eventType listeners only get removed when javascript calls .off() and cleanup is run on the entire path
-   */
-  public void setListeningTo(final String path, final String evtName) {
-    String key = this.pathListeningKey(path, evtName);
-    mListeners.put(key, true);
+  public synchronized void setListeningTo(final String evtName) {
+    Integer count = mListeners.get(evtName);
+    mListeners.put(evtName, count == null ? 1 : count + 1);
   }
 
-  public void notListeningTo(final String path, final String evtName) {
-    String key = this.pathListeningKey(path, evtName);
-    mListeners.remove(key);
+  public synchronized void notListeningTo(final String evtName) {
+    Integer count = mListeners.get(evtName);
+    if (count == null || count <= 1) {
+      mListeners.remove(evtName);
+    } else {
+      mListeners.put(evtName, count - 1);
+    }
   }
 
-  private String pathListeningKey(final String path, final String eventName) {
-    return "listener/" + path + "/" + eventName;
+  public synchronized void removeListener(final String evtName) {
+    this.notListeningTo(evtName);
+    if (evtName.equals("value")) {
+      if (!this.isListeningTo("value")) {
+        this.removeValueEventListener();
+      }
+    } else if (!this.isListeningTo("child_added") &&
+               !this.isListeningTo("child_changed") &&
+               !this.isListeningTo("child_removed") &&
+               !this.isListeningTo("child_moved")) {
+      this.removeChildEventListener();
+    }
   }
 
-  public void cleanup() {
+  public synchronized void cleanup() {
     Log.d(TAG, "cleaning up database reference " + this);
     this.removeChildEventListener();
     this.removeValueEventListener();
+    mListeners.clear();
   }
 
-  public void removeChildEventListener() {
+  public synchronized void removeChildEventListener() {
     if (mEventListener != null) {
-      DatabaseReference ref = this.getDatabaseRef();
-      ref.removeEventListener(mEventListener);
-      this.notListeningTo(mPath, "child_added");
-      this.notListeningTo(mPath, "child_changed");
-      this.notListeningTo(mPath, "child_removed");
-      this.notListeningTo(mPath, "child_moved");
+      if (!mPaused) {
+        this.detach(mEventListener, "child");
+      }
+      mListeners.remove("child_added");
+      mListeners.remove("child_changed");
+      mListeners.remove("child_removed");
+      mListeners.remove("child_moved");
       mEventListener = null;
     }
   }
 
-  public void removeValueEventListener() {
-    DatabaseReference ref = this.getDatabaseRef();
+  public synchronized void removeValueEventListener() {
     if (mValueListener != null) {
-      ref.removeEventListener(mValueListener);
-      this.notListeningTo(mPath, "value");
+      if (!mPaused) {
+        this.detach(mValueListener, "value");
+      }
+      mListeners.remove("value");
       mValueListener = null;
+      this.invalidateCachedValue();
+      mLastValueTree = null;
+      mLastChildKeys = null;
     }
     if (mOnceValueListener != null) {
-      ref.removeEventListener(mOnceValueListener);
+      this.getQuery().removeEventListener(mOnceValueListener);
+      mOnceValueListener.finish();
       mOnceValueListener = null;
     }
   }
 
-  private void handleDatabaseEvent(final String name, final String path, final DataSnapshot dataSnapshot) {
-    if (!FirestackDBReference.this.isListeningTo(path, name)) {
+  /**
+   * How many persistent native listeners this reference has attached
+   */
+  public synchronized int getAttachedCount() {
+    if (mPaused) {
+      return 0;
+    }
+    return (mValueListener != null ? 1 : 0) + (mEventListener != null ? 1 : 0);
+  }
+
+  // Listeners are attached to, and must be removed from, the query itself:
+  // removing them from the bare reference leaves them attached
+
+  private void attach(final ValueEventListener listener) {
+    this.getQuery().addValueEventListener(listener);
+    mRegistry.attached(mPath, "value");
+  }
+
+  private void attach(final ChildEventListener listener) {
+    this.getQuery().addChildEventListener(listener);
+    mRegistry.attached(mPath, "child");
+  }
+
+  private void detach(final ValueEventListener listener, final String kind) {
+    this.getQuery().removeEventListener(listener);
+    mRegistry.detached(mPath, kind);
+  }
+
+  private void detach(final ChildEventListener listener, final String kind) {
+    this.getQuery().removeEventListener(listener);
+    mRegistry.detached(mPath, kind);
+  }
+
+  private OnceListener addOnceListener(final ValueEventListener listener) {
+    OnceListener once = new OnceListener(listener);
+    mRegistry.attached(mPath, "once");
+    this.getQuery().addListenerForSingleValueEvent(once);
+    return once;
+  }
+
+  /**
+   * A single value listener that leaves the registry exactly once, whether
+   * it fires or is removed first
+   */
+  private class OnceListener implements ValueEventListener {
+    private final ValueEventListener mDelegate;
+    private boolean mDone = false;
+
+    OnceListener(final ValueEventListener delegate) {
+      mDelegate = delegate;
+    }
+
+    synchronized boolean finish() {
+      if (mDone) {
+        return false;
+      }
+      mDone = true;
+      mRegistry.detached(mPath, "once");
+      return true;
+    }
+
+    @Override
+    public void onDataChange(DataSnapshot dataSnapshot) {
+      if (this.finish()) {
+        mDelegate.onDataChange(dataSnapshot);
+      }
+    }
+
+    @Override
+    public void onCancelled(DatabaseError error) {
+      if (this.finish()) {
+        mDelegate.onCancelled(error);
+      }
+    }
+  }
+
+  /**
+   * Firebase delivers on the main thread, so serialization is handed to the
+   * executor, which keeps events for the same path in order
+   */
+  private synchronized void handleDatabaseEvent(final String name, final String path, final DataSnapshot dataSnapshot) {
+    if (!FirestackDBReference.this.isListeningTo(name)) {
+      return;
+    }
+    final boolean catchUp = mCatchingUp;
+    if (catchUp) {
+      if (!name.equals("value")) {
+        // existing children arrive in the catch-up value event instead
+        return;
+      }
+      mCatchingUp = false;
+    }
+    // cached here rather than on the worker, so it is ordered with the
+    // invalidate a detach or pause does on this thread
+    final String cacheKey = FirestackSnapshotCache.key(mPath, mQuerySpec);
+    final boolean cached = mSnapshotCache != null &&
+                           name.equals("value") &&
+                           mSnapshotCache.put(cacheKey, this, dataSnapshot);
+    boolean queued = mExecutor.execute(path, new Runnable() {
+      @Override
+      public void run() {
+        if (cached) {
+          mSnapshotCache.measure(cacheKey, dataSnapshot);
+        }
+        emitDatabaseEvent(name, path, dataSnapshot, catchUp);
+      }
+    });
+    if (!queued) {
+      if (cached) {
+        // it would never be sized
+        this.invalidateCachedValue();
+      }
+      this.catchUpAfterDrop();
+    }
+  }
+
+  /**
+   * An event the executor refused is lost, so once it has room javascript
+   * gets a catch-up value snapshot of the query, as after a resume, and
+   * child events are skipped until then. The snapshot is only asked for
+   * once the executor has drained, so a queue that stays full doesn't
+   * keep re-arming it
+   */
+  private synchronized void catchUpAfterDrop() {
+    if (mCatchingUp || mPaused) {
+      return;
+    }
+    Log.w(TAG, "Dropped an event for " + mHandle + ", catching up once there is room");
+    mCatchingUp = true;
+    final int generation = mCatchUpGeneration;
+    mExecutor.whenDrained(new Runnable() {
+      @Override
+      public void run() {
+        armCatchUp(generation);
+      }
+    });
+  }
+
+  private synchronized void armCatchUp(final int generation) {
+    // a value event that came in meanwhile already caught up, and a pause
+    // leaves it to resume
+    if (!mCatchingUp || mPaused || generation != mCatchUpGeneration || !this.hasListeners()) {
+      return;
+    }
+    this.addOnceListener(new ValueEventListener() {
+      @Override
+      public void onDataChange(final DataSnapshot dataSnapshot) {
+        handleCatchUp(dataSnapshot);
+      }
+
+      @Override
+      public void onCancelled(DatabaseError error) {
+        synchronized (FirestackDBReference.this) {
+          mCatchingUp = false;
+        }
+        Log.w(TAG, "Could not catch up " + mHandle + ": " + error.getMessage());
+      }
+    });
+  }
+
+  private synchronized void handleCatchUp(final DataSnapshot dataSnapshot) {
+    if (!mCatchingUp) {
+      return;
+    }
+    mCatchingUp = false;
+    boolean queued = mExecutor.execute(mPath, new Runnable() {
+      @Override
+      public void run() {
+        // the last tree javascript saw is unknown, so the next diff starts over
+        mLastValueTree = null;
+        mLastChildKeys = null;
+        // through the same diff or chunk path as any value event, so a
+        // chunked listener doesn't get the whole tree in one payload
+        emitDatabaseEvent("value", mPath, dataSnapshot, true);
+      }
+    });
+    if (!queued && !mPaused && this.hasListeners()) {
+      this.catchUpAfterDrop();
+    }
+  }
+
+  private void invalidateCachedValue() {
+    if (mSnapshotCache != null) {
+      mSnapshotCache.invalidate(FirestackSnapshotCache.key(mPath, mQuerySpec), this);
+    }
+  }
+
+  private void emitDatabaseEvent(final String name,
+                                 final String path,
+                                 final DataSnapshot dataSnapshot,
+                                 final boolean catchUp) {
+    if (mChunkSize > 0 && !mDiffMode && name.equals("value")) {
+      this.emitValueChunks(name, path, dataSnapshot, catchUp);
       return;
     }
-    WritableMap data = FirestackUtils.dataSnapshotToMap(name, path, dataSnapshot);
+
+    long start = System.nanoTime();
+    WritableMap data;
+    if (mDiffMode && name.equals("value")) {
+      data = this.dataSnapshotToDiff(name, path, dataSnapshot);
+    } else {
+      data = FirestackUtils.dataSnapshotToMap(name, path, dataSnapshot);
+    }
+    FirestackMetrics.recordSerialization("database_event", path, System.nanoTime() - start);
+    data.putString("handle", mHandle);
+    if (catchUp) {
+      data.putBoolean("catchUp", true);
+    }
+
     WritableMap evt = Arguments.createMap();
     evt.putString("eventName", name);
     evt.putString("path", path);
+    evt.putString("handle", mHandle);
     evt.putMap("body", data);
-    
-    FirestackUtils.sendEvent(mReactContext, "database_event", evt);
+
+    mDispatcher.dispatch(evt);
+  }
+
+  /**
+   * Only one chunk of children is serialized at a time, so native and
+   * javascript heap use is bounded by the chunk size rather than the tree.
+   * An array-like value is sent as array chunks, each with the offset of
+   * its first element
+   */
+  private void emitValueChunks(final String name,
+                               final String path,
+                               final DataSnapshot dataSnapshot,
+                               final boolean catchUp) {
+    int chunkSize = mChunkSize > 0 ? mChunkSize : Integer.MAX_VALUE;
+    boolean isArray = FirestackSnapshotSerializer.arrayMaxIndex(dataSnapshot) >= 0;
+    int index = 0;
+    int offset = 0;
+    Iterator<DataSnapshot> children = dataSnapshot.getChildren().iterator();
+    while (children.hasNext()) {
+      long start = System.nanoTime();
+      WritableMap snapshot = FirestackSnapshotSerializer.serializeHeader(dataSnapshot);
+      int next = FirestackSnapshotSerializer.putChunk(snapshot, children, chunkSize, isArray, offset);
+      FirestackMetrics.recordSerialization("database_event", path, System.nanoTime() - start);
+
+      this.dispatchChunk(name, path, snapshot, index++, false, isArray ? offset : -1, catchUp);
+      offset = next;
+    }
+
+    WritableMap snapshot = FirestackSnapshotSerializer.serializeHeader(dataSnapshot);
+    if (dataSnapshot.hasChildren()) {
+      snapshot.putNull("value");
+    } else {
+      FirestackSnapshotSerializer.putLeaf(snapshot, "value", dataSnapshot.getValue());
+    }
+    snapshot.putArray("childKeys", Arguments.createArray());
+    this.dispatchChunk(name, path, snapshot, index, true, -1, catchUp);
+  }
+
+  private void dispatchChunk(final String name,
+                             final String path,
+                             final WritableMap snapshot,
+                             final int index,
+                             final boolean complete,
+                             final int offset,
+                             final boolean catchUp) {
+    WritableMap chunk = Arguments.createMap();
+    chunk.putInt("index", index);
+    chunk.putBoolean("complete", complete);
+    if (offset >= 0) {
+      chunk.putInt("offset", offset);
+    }
+
+    WritableMap data = Arguments.createMap();
+    data.putString("eventName", name);
+    data.putString("path", path);
+    data.putString("handle", mHandle);
+    data.putMap("chunk", chunk);
+    data.putMap("snapshot", snapshot);
+    if (catchUp) {
+      data.putBoolean("catchUp", true);
+    }
+
+    WritableMap evt = Arguments.createMap();
+    evt.putString("eventName", name);
+    evt.putString("path", path);
+    evt.putString("handle", mHandle);
+    evt.putMap("body", data);
+
+    // batched chunks would be held together, defeating the chunk size
+    mDispatcher.dispatchNow(evt);
+  }
+
+  private WritableMap dataSnapshotToDiff(final String name, final String path, final DataSnapshot dataSnapshot) {
+    Object tree = FirestackSnapshotDiff.toTree(dataSnapshot);
+    List<String> childKeys = FirestackSnapshotDiff.childKeys(tree);
+
+    WritableMap snapshot = Arguments.createMap();
+    snapshot.putString("key", dataSnapshot.getKey());
+    snapshot.putBoolean("exists", dataSnapshot.exists());
+    snapshot.putBoolean("hasChildren", childKeys.size() > 0);
+    snapshot.putDouble("childrenCount", childKeys.size());
+    Object priority = dataSnapshot.getPriority();
+    snapshot.putString("priority", priority == null ? null : priority.toString());
+
+    // childKeys are only resent when the set or order of children changed
+    if (mLastValueTree == null || !childKeys.equals(mLastChildKeys)) {
+      WritableArray keys = Arguments.createArray();
+      for (String key : childKeys) {
+        keys.pushString(key);
+      }
+      snapshot.putArray("childKeys", keys);
+    }
+
+    WritableMap data = Arguments.createMap();
+    data.putString("eventName", name);
+    data.putString("path", path);
+    data.putBoolean("diff", true);
+    data.putArray("ops", FirestackSnapshotDiff.diff(mLastValueTree, tree));
+    data.putMap("snapshot", snapshot);
+
+    mLastValueTree = tree;
+    mLastChildKeys = childKeys;
+    return data;
   }
 
   private void handleDatabaseError(final String name, final String path, final DatabaseError error) {
+    boolean queued = mExecutor.execute(path, new Runnable() {
+      @Override
+      public void run() {
+        emitDatabaseError(name, path, errorMap(error));
+      }
+    });
+    if (!queued) {
+      // nothing to serialize, and an error must not be lost
+      emitDatabaseError(name, path, errorMap(error));
+    }
+  }
+
+  private static WritableMap errorMap(final DatabaseError error) {
     WritableMap err = Arguments.createMap();
     err.putInt("errorCode", error.getCode());
     err.putString("errorDetails", error.getDetails());
     err.putString("description", error.getMessage());
+    return err;
+  }
 
+  static WritableMap queueFullError() {
+    WritableMap err = Arguments.createMap();
+    err.putString("description", "Serialization queue is full");
+    return err;
+  }
+
+  private void emitDatabaseError(final String name, final String path, final WritableMap err) {
     WritableMap evt  = Arguments.createMap();
     evt.putString("eventName", name);
     evt.putString("path", path);
+    evt.putString("handle", mHandle);
     evt.putMap("body", err);
 
+    // keep errors ordered after any events still waiting to be batched
+    mDispatcher.flush();
     FirestackUtils.sendEvent(mReactContext, "database_error", evt);
   }
 
@@ -215,83 +790,41 @@ class FirestackDBReference {
     return FirebaseDatabase.getInstance().getReference(mPath);
   }
 
-  private Query getDatabaseQueryAtPathAndModifiers(final ReadableArray modifiers) {
-    DatabaseReference ref = this.getDatabaseRef();
-
-    List<Object> strModifiers = FirestackUtils.recursivelyDeconstructReadableArray(modifiers);
-    ListIterator<Object> it = strModifiers.listIterator();
-    Query query = ref.orderByKey();
-
-    while(it.hasNext()) {
-      String str = (String) it.next();
-
-      String[] strArr = str.split(":");
-      String methStr = strArr[0];
-
-      if (methStr.equalsIgnoreCase("orderByKey")) {
-        query = ref.orderByKey();
-      } else if (methStr.equalsIgnoreCase("orderByValue")) {
-        query = ref.orderByValue();
-      } else if (methStr.equalsIgnoreCase("orderByPriority")) {
-        query = ref.orderByPriority();
-      } else if (methStr.contains("orderByChild")) {
-        String key = strArr[1];
-        Log.d(TAG, "orderByChild: " + key);
-        query = ref.orderByChild(key);
-      } else if (methStr.contains("limitToLast")) {
-        String key = strArr[1];
-        int limit = Integer.parseInt(key);
-        Log.d(TAG, "limitToLast: " + limit);
-        query = query.limitToLast(limit);
-      } else if (methStr.contains("limitToFirst")) {
-        String key = strArr[1];
-        int limit = Integer.parseInt(key);
-        Log.d(TAG, "limitToFirst: " + limit);
-        query = query.limitToFirst(limit);
-      } else if (methStr.contains("equalTo")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.equalTo(value);
-        } else {
-          query = query.equalTo(value, key);
-        }
-      } else if (methStr.contains("endAt")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.endAt(value);
-        } else {
-          query = query.endAt(value, key);
-        }
-      } else if (methStr.contains("startAt")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.startAt(value);
-        } else {
-          query = query.startAt(value, key);
-        }
-      }
+  public Query getQuery() {
+    if (mQuery == null) {
+      mQuery = mQuerySpec.apply(this.getDatabaseRef());
     }
-
-    return query;
+    return mQuery;
   }
 
+
 }
 
-class FirestackDatabaseModule extends ReactContextBaseJavaModule {
+class FirestackDatabaseModule extends ReactContextBaseJavaModule implements LifecycleEventListener {
 
   private static final String TAG = "FirestackDatabase";
 
   private Context context;
   private ReactContext mReactContext;
   private HashMap<String, FirestackDBReference> mDBListeners = new HashMap<String, FirestackDBReference>();
+  private AtomicInteger mOnceHandles = new AtomicInteger();
+  private FirestackEventDispatcher mDispatcher;
+  private FirestackSerialExecutor mExecutor;
+  private FirestackSnapshotCache mSnapshotCache;
+  private FirestackListenerRegistry mRegistry = new FirestackListenerRegistry();
+  private String mBackgroundPolicy = "foregroundOnly";
+  private boolean mInBackground = false;
 
   public FirestackDatabaseModule(ReactApplicationContext reactContext) {
     super(reactContext);
     this.context = reactContext;
     mReactContext = reactContext;
+    mDispatcher = new FirestackEventDispatcher(reactContext, "database_event", "database_events");
+    mExecutor = new FirestackSerialExecutor(TAG,
+      FirestackSerialExecutor.DEFAULT_THREADS,
+      FirestackSerialExecutor.DEFAULT_MAX_PENDING);
+    mSnapshotCache = new FirestackSnapshotCache(FirestackSnapshotCache.DEFAULT_MAX_BYTES);
+    reactContext.addLifecycleEventListener(this);
   }
 
   @Override
@@ -299,6 +832,114 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
     return TAG;
   }
 
+  @Override
+  public void onCatalystInstanceDestroy() {
+    for (FirestackDBReference ref : mDBListeners.values()) {
+      ref.cleanup();
+    }
+    mDBListeners.clear();
+    mExecutor.shutdown();
+    mSnapshotCache.clear();
+  }
+
+  // lifecycle callbacks arrive on the UI thread; mDBListeners and
+  // mInBackground are only touched on the native modules thread, where
+  // on, off and friends run, so the work is posted there
+
+  @Override
+  public void onHostResume() {
+    mReactContext.runOnNativeModulesQueueThread(new Runnable() {
+      @Override
+      public void run() {
+        mInBackground = false;
+        for (FirestackDBReference ref : mDBListeners.values()) {
+          ref.resume();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void onHostPause() {
+    mReactContext.runOnNativeModulesQueueThread(new Runnable() {
+      @Override
+      public void run() {
+        mInBackground = true;
+        int paused = 0;
+        for (FirestackDBReference ref : mDBListeners.values()) {
+          if (pausesInBackground(ref)) {
+            ref.pause();
+            paused++;
+          }
+        }
+        Log.d(TAG, "Paused " + paused + " of " + mDBListeners.size() + " listeners");
+      }
+    });
+  }
+
+  /**
+   * Reports native listeners still attached when the host goes away.
+   * Listeners no reference accounts for (attached but not tracked in
+   * mDBListeners, or tracked but unsubscribed) are leaks.
+   */
+  @Override
+  public void onHostDestroy() {
+    int leaked = this.leakedListenerCount();
+    if (leaked > 0) {
+      Log.w(TAG, "Leaked " + leaked + " database listeners: " + mRegistry.describe());
+    } else if (mRegistry.getLiveCount() > 0) {
+      Log.d(TAG, mRegistry.getLiveCount() + " database listeners still attached: " + mRegistry.describe());
+    }
+  }
+
+  /**
+   * Debug view of the native listeners attached right now, by path
+   */
+  @ReactMethod
+  public void getLiveListeners(final Callback callback) {
+    WritableMap res = Arguments.createMap();
+    res.putInt("count", mRegistry.getLiveCount());
+    res.putInt("references", mDBListeners.size());
+    res.putInt("leaked", this.leakedListenerCount());
+    res.putMap("paths", mRegistry.toMap());
+    callback.invoke(null, res);
+  }
+
+  private int leakedListenerCount() {
+    int expected = 0;
+    for (FirestackDBReference ref : mDBListeners.values()) {
+      expected += ref.getAttachedCount();
+    }
+    int live = mRegistry.getLiveCount() - mRegistry.getLiveCount("once");
+    return Math.max(0, live - expected);
+  }
+
+  /**
+   * What happens to listeners while the app is in the background:
+   *   keep           - every listener keeps syncing
+   *   foregroundOnly - listeners added with { foregroundOnly: true } are
+   *                    detached, and caught up on resume (the default)
+   *   all            - every listener is detached and caught up on resume
+   */
+  @ReactMethod
+  public void configureBackgroundPolicy(
+    final ReadableMap options,
+    final Callback callback) {
+      String policy = options.hasKey("policy") ? options.getString("policy") : "foregroundOnly";
+      if (!policy.equals("keep") && !policy.equals("foregroundOnly") && !policy.equals("all")) {
+        WritableMap err = Arguments.createMap();
+        err.putString("description", "Unknown background policy: " + policy);
+        callback.invoke(err);
+        return;
+      }
+      mBackgroundPolicy = policy;
+
+      WritableMap res = Arguments.createMap();
+      res.putString("status", "success");
+      res.putString("policy", policy);
+      callback.invoke(null, res);
+  }
+
   // Persistence
   @ReactMethod
   public void enablePersistence(
@@ -316,6 +957,80 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
       callback.invoke(null, res);
   }
 
+  /**
+   * Batch database_event emissions into a single database_events event
+   * every flushInterval ms or maxBatchSize events
+   */
+  @ReactMethod
+  public void configureEventBatching(
+    final ReadableMap options,
+    final Callback callback) {
+      boolean enabled = !options.hasKey("enabled") || options.getBoolean("enabled");
+      int flushInterval = options.hasKey("flushInterval") ?
+        options.getInt("flushInterval") :
+        FirestackEventDispatcher.DEFAULT_FLUSH_INTERVAL;
+      int maxBatchSize = options.hasKey("maxBatchSize") ?
+        options.getInt("maxBatchSize") :
+        FirestackEventDispatcher.DEFAULT_MAX_BATCH_SIZE;
+
+      mDispatcher.configure(enabled, flushInterval, maxBatchSize);
+
+      WritableMap res = Arguments.createMap();
+      res.putString("status", "success");
+      res.putBoolean("enabled", enabled);
+      res.putInt("flushInterval", flushInterval);
+      res.putInt("maxBatchSize", maxBatchSize);
+      callback.invoke(null, res);
+  }
+
+  /**
+   * Size the pool that serializes snapshots off the main thread
+   */
+  @ReactMethod
+  public void configureSerialization(
+    final ReadableMap options,
+    final Callback callback) {
+      int threads = options.hasKey("threads") ?
+        options.getInt("threads") :
+        FirestackSerialExecutor.DEFAULT_THREADS;
+      int maxPending = options.hasKey("maxPending") ?
+        options.getInt("maxPending") :
+        FirestackSerialExecutor.DEFAULT_MAX_PENDING;
+
+      mExecutor.configure(threads, maxPending);
+
+      WritableMap res = Arguments.createMap();
+      res.putString("status", "success");
+      res.putInt("threads", threads);
+      res.putInt("maxPending", maxPending);
+      res.putDouble("dropped", mExecutor.getDropped());
+      callback.invoke(null, res);
+  }
+
+  /**
+   * Bound the cache of values held by live value listeners, which answers
+   * onOnce reads of the same query. A maxBytes of 0 disables it.
+   */
+  @ReactMethod
+  public void configureSnapshotCache(
+    final ReadableMap options,
+    final Callback callback) {
+      long maxBytes = options.hasKey("maxBytes") ?
+        (long) options.getDouble("maxBytes") :
+        FirestackSnapshotCache.DEFAULT_MAX_BYTES;
+
+      mSnapshotCache.setMaxBytes(maxBytes);
+
+      WritableMap res = Arguments.createMap();
+      res.putString("status", "success");
+      res.putDouble("maxBytes", mSnapshotCache.getMaxBytes());
+      res.putDouble("bytes", mSnapshotCache.getBytes());
+      res.putInt("count", mSnapshotCache.getCount());
+      res.putDouble("hits", mSnapshotCache.getHits());
+      res.putDouble("misses", mSnapshotCache.getMisses());
+      callback.invoke(null, res);
+  }
+
   @ReactMethod
   public void keepSynced(
     final String path,
@@ -431,27 +1146,259 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
     }
   }
 
+  /**
+   * Applies a list of { type: set|update|remove|push, path, value } writes
+   * with as few server writes as possible. Consecutive ops are folded into
+   * one multi-location updateChildren at the root until an op touches a
+   * path that overlaps one already in the group (Firebase rejects those),
+   * which starts the next group. Groups run in order and the callback gets
+   * one aggregated result, including the refs created by push ops.
+   */
+  @ReactMethod
+  public void batchWrite(final ReadableArray ops,
+                         final Callback callback) {
+    final List<Map<String, Object>> groups = new ArrayList<Map<String, Object>>();
+    final WritableArray refs = Arguments.createArray();
+    Map<String, Object> group = new HashMap<String, Object>();
+    DatabaseReference root = FirebaseDatabase.getInstance().getReference();
+
+    try {
+      for (Object o : FirestackUtils.recursivelyDeconstructReadableArray(ops)) {
+        Map<String, Object> op = (Map<String, Object>) o;
+        String type = (String) op.get("type");
+        String path = this.trimPath((String) op.get("path"));
+        Object value = op.get("value");
+
+        Map<String, Object> writes = new HashMap<String, Object>();
+        if (type.equals("set")) {
+          writes.put(path, value);
+        } else if (type.equals("remove")) {
+          writes.put(path, null);
+        } else if (type.equals("update")) {
+          for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+            writes.put(this.childPath(path, this.trimPath(entry.getKey())), entry.getValue());
+          }
+        } else if (type.equals("push")) {
+          String newPath = this.childPath(path, root.child(path).push().getKey());
+          writes.put(newPath, value);
+          refs.pushString("/" + newPath);
+        } else {
+          throw new IllegalArgumentException("Unknown batch operation: " + type);
+        }
+
+        for (String writePath : writes.keySet()) {
+          if (this.overlapsAny(writePath, group)) {
+            groups.add(group);
+            group = new HashMap<String, Object>();
+            break;
+          }
+        }
+        group.putAll(writes);
+      }
+    } catch (Exception ex) {
+      Log.e(TAG, "Invalid batchWrite operations", ex);
+      WritableMap err = Arguments.createMap();
+      err.putString("description", ex.getMessage());
+      callback.invoke(err);
+      return;
+    }
+
+    if (!group.isEmpty()) {
+      groups.add(group);
+    }
+    this.runWriteGroups(root, groups, 0, ops.size(), refs, callback);
+  }
+
+  private void runWriteGroups(final DatabaseReference root,
+                              final List<Map<String, Object>> groups,
+                              final int index,
+                              final int opCount,
+                              final WritableArray refs,
+                              final Callback callback) {
+    if (index >= groups.size()) {
+      WritableMap res = Arguments.createMap();
+      res.putString("status", "success");
+      res.putString("method", "batchWrite");
+      res.putInt("operations", opCount);
+      res.putInt("writes", groups.size());
+      res.putArray("refs", refs);
+      callback.invoke(null, res);
+      return;
+    }
+
+    root.updateChildren(groups.get(index), new DatabaseReference.CompletionListener() {
+      @Override
+      public void onComplete(DatabaseError error, DatabaseReference ref) {
+        if (error != null) {
+          WritableMap err = Arguments.createMap();
+          err.putInt("errorCode", error.getCode());
+          err.putString("errorDetails", error.getDetails());
+          err.putString("description", error.getMessage());
+          err.putInt("failedWrite", index);
+          err.putInt("completedWrites", index);
+          callback.invoke(err);
+        } else {
+          runWriteGroups(root, groups, index + 1, opCount, refs, callback);
+        }
+      }
+    });
+  }
+
+  private boolean overlapsAny(final String path, final Map<String, Object> group) {
+    for (String other : group.keySet()) {
+      if (path.equals(other) ||
+          path.startsWith(other + "/") ||
+          other.startsWith(path + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String trimPath(final String path) {
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/') {
+      start++;
+    }
+    while (end > start && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    return path.substring(start, end);
+  }
+
+  private String childPath(final String path, final String child) {
+    return path.length() == 0 ? child : path + "/" + child;
+  }
+
+  /**
+   * Runs a transaction whose update function is a FirestackTransactionOp,
+   * so retries under contention don't cross the bridge. The result reports
+   * whether it committed, how many attempts it took and the total latency.
+   */
+  @ReactMethod
+  public void runTransaction(final String path,
+                             final ReadableMap op,
+                             final ReadableMap options,
+                             final Callback callback) {
+    final FirestackTransactionOp transactionOp;
+    try {
+      transactionOp = FirestackTransactionOp.parse(op);
+    } catch (Exception ex) {
+      Log.e(TAG, "Invalid transaction op", ex);
+      WritableMap err = Arguments.createMap();
+      err.putString("description", ex.getMessage());
+      callback.invoke(err);
+      return;
+    }
+
+    boolean applyLocally = !options.hasKey("applyLocally") || options.getBoolean("applyLocally");
+    final long start = System.currentTimeMillis();
+    DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
+
+    ref.runTransaction(new Transaction.Handler() {
+      @Override
+      public Transaction.Result doTransaction(MutableData data) {
+        return transactionOp.apply(data);
+      }
+
+      @Override
+      public void onComplete(DatabaseError error, boolean committed, DataSnapshot snapshot) {
+        int attempts = transactionOp.getAttempts();
+        long latency = System.currentTimeMillis() - start;
+        Log.d(TAG, "Transaction at " + path + " " + (committed ? "committed" : "not committed") +
+          " after " + attempts + " attempt(s) in " + latency + "ms");
+
+        if (error != null) {
+          WritableMap err = Arguments.createMap();
+          err.putInt("errorCode", error.getCode());
+          err.putString("errorDetails", error.getDetails());
+          err.putString("description", error.getMessage());
+          err.putInt("attempts", attempts);
+          err.putDouble("latency", latency);
+          callback.invoke(err);
+          return;
+        }
+
+        WritableMap res = Arguments.createMap();
+        res.putString("status", "success");
+        res.putString("method", "runTransaction");
+        res.putBoolean("committed", committed);
+        res.putInt("attempts", attempts);
+        res.putInt("retries", Math.max(0, attempts - 1));
+        res.putDouble("latency", latency);
+        if (snapshot != null) {
+          res.putMap("snapshot", FirestackSnapshotSerializer.serializeSnapshot(snapshot));
+        }
+        callback.invoke(null, res);
+      }
+    }, applyLocally);
+  }
+
   @ReactMethod
   public void on(final String path,
                  final ReadableArray modifiers,
                  final String name,
                  final Callback callback) {
-    FirestackDBReference ref = this.getDBHandle(path);
+    this.onWithOptions(path, modifiers, name, null, callback);
+  }
 
-    WritableMap resp = Arguments.createMap();
+  /**
+   * Identical queries (same path, modifiers, event and options) share one
+   * native listener. The returned handle identifies that listener and is
+   * attached to every event it emits, so javascript can fan them out.
+   *
+   * Supported options:
+   *   diff (boolean)     - value events carry a set/remove patch against the
+   *                        previously emitted value instead of the full snapshot
+   *   chunkSize (number) - value events are streamed in chunks of at most
+   *                        chunkSize children, ending with a complete marker
+   */
+  @ReactMethod
+  public void onWithOptions(final String path,
+                            final ReadableArray modifiers,
+                            final String name,
+                            @Nullable final ReadableMap options,
+                            final Callback callback) {
+    boolean diff = name.equals("value") &&
+                   options != null &&
+                   options.hasKey("diff") &&
+                   options.getBoolean("diff");
+    boolean foregroundOnly = options != null &&
+                             options.hasKey("foregroundOnly") &&
+                             options.getBoolean("foregroundOnly");
+    int chunkSize = this.chunkSize(name, options);
+    FirestackQuerySpec querySpec = this.compileQuery(path, modifiers, callback);
+    if (querySpec == null) {
+      return;
+    }
+    String handle = this.listenerHandle(path, querySpec, name, diff, chunkSize, foregroundOnly);
+    FirestackDBReference ref = this.getDBHandle(handle, path, querySpec);
+    boolean shared = ref.isListeningTo(name);
 
+    ref.setForegroundOnly(foregroundOnly);
     if (name.equals("value")) {
-      ref.addValueEventListener(name, modifiers);
+      ref.setDiffMode(diff);
+      ref.setChunkSize(chunkSize);
+      ref.addValueEventListener();
     } else {
-      ref.addChildEventListener(name, modifiers);
+      ref.addChildEventListener(name);
+    }
+    if (mInBackground && this.pausesInBackground(ref)) {
+      ref.pause();
     }
 
-    this.saveDBHandle(path, ref);
+    WritableMap resp = Arguments.createMap();
     resp.putString("result", "success");
-    Log.d(TAG, "Added listener " + name + " for " + ref);
-    
-    resp.putString("handle", path);
-    callback.invoke(null, resp);
+    resp.putString("handle", handle);
+    resp.putBoolean("shared", shared);
+    Log.d(TAG, "Added listener " + name + " for " + handle);
+
+    if (shared && name.equals("child_added")) {
+      ref.addOnceChildrenListener(resp, callback);
+    } else {
+      callback.invoke(null, resp);
+    }
   }
 
   @ReactMethod
@@ -460,22 +1407,111 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
                      final String name,
                      final Callback callback) {
     Log.d(TAG, "Setting one-time listener on event: " + name + " for path " + path);
-    FirestackDBReference ref = this.getDBHandle(path);
-    ref.addOnceValueEventListener(modifiers, callback);
+    ReactContext ctx = getReactApplicationContext();
+    FirestackQuerySpec querySpec = this.compileQuery(path, modifiers, callback);
+    if (querySpec == null) {
+      return;
+    }
+
+    // a live value listener on the same query already has the current value
+    final DataSnapshot cached = mSnapshotCache.get(FirestackSnapshotCache.key(path, querySpec));
+    if (cached != null) {
+      Log.d(TAG, "Answering one-time read of " + path + " from a live listener");
+      boolean queued = mExecutor.execute(path, new Runnable() {
+        @Override
+        public void run() {
+          callback.invoke(null, FirestackUtils.dataSnapshotToMap("value", path, cached));
+        }
+      });
+      if (!queued) {
+        callback.invoke(FirestackDBReference.queueFullError());
+      }
+      return;
+    }
+
+    FirestackDBReference ref = new FirestackDBReference(ctx, path, null, querySpec, mDispatcher, mExecutor, null, mRegistry);
+    ref.addOnceValueEventListener(callback);
   }
 
   /**
-   * At the time of this writing, off() only gets called when there are no more subscribers to a given path.
-   * `mListeners` might therefore be out of sync (though javascript isnt listening for those eventTypes, so
-   * it doesn't really matter- just polluting the RN bridge a little more than necessary.
-   * off() should therefore clean *everything* up
+   * onOnce with options. With a chunkSize, the callback is invoked right
+   * away with a one-off handle (options.handle when given, so javascript
+   * can subscribe to it before the read starts), and the value is
+   * delivered as chunked database_event events on that handle.
    */
   @ReactMethod
-  public void off(final String path, @Deprecated final String name, final Callback callback) {
-    this.removeDBHandle(path);
-    Log.d(TAG, "Removed listener " + path);
+  public void onOnceWithOptions(final String path,
+                                final ReadableArray modifiers,
+                                final String name,
+                                @Nullable final ReadableMap options,
+                                final Callback callback) {
+    int chunkSize = this.chunkSize(name, options);
+    if (chunkSize <= 0) {
+      this.onOnce(path, modifiers, name, callback);
+      return;
+    }
+
+    ReactContext ctx = getReactApplicationContext();
+    FirestackQuerySpec querySpec = this.compileQuery(path, modifiers, callback);
+    if (querySpec == null) {
+      return;
+    }
+    String handle = options.hasKey("handle") ?
+      options.getString("handle") :
+      "once:" + mOnceHandles.incrementAndGet() + "|" + path;
+    FirestackDBReference ref = new FirestackDBReference(ctx, path, handle, querySpec, mDispatcher, mExecutor, null, mRegistry);
+    ref.setChunkSize(chunkSize);
+    ref.addOnceChunkedValueEventListener(callback);
+  }
+
+  /**
+   * The compiled query for modifiers, or null when Firebase would reject
+   * it, in which case the error has gone to callback rather than
+   * unwinding through the bridge. The query is built once here so
+   * combinations the SDK refuses (e.g. two startAt) are caught too
+   */
+  @Nullable
+  private FirestackQuerySpec compileQuery(final String path,
+                                          final ReadableArray modifiers,
+                                          final Callback callback) {
+    try {
+      FirestackQuerySpec querySpec = FirestackQuerySpec.compile(modifiers);
+      querySpec.apply(this.getDatabaseReferenceAtPath(path));
+      return querySpec;
+    } catch (RuntimeException ex) {
+      // IllegalArgumentException from either, DatabaseException for a bad child path
+      Log.w(TAG, "Bad query for " + path + ": " + ex.getMessage());
+      WritableMap err = Arguments.createMap();
+      err.putString("description", ex.getMessage());
+      callback.invoke(err);
+      return null;
+    }
+  }
+
+  /**
+   * off() is called once per javascript subscriber with the handle returned
+   * by on(). It releases one reference to the listener for `name`, or all of
+   * them when `name` is empty. A bare path (no handle) cleans up every query
+   * listening on that path.
+   */
+  @ReactMethod
+  public void off(final String handle, final String name, final Callback callback) {
+    if (mDBListeners.containsKey(handle)) {
+      FirestackDBReference r = mDBListeners.get(handle);
+      if (name == null || name.equals("")) {
+        r.cleanup();
+      } else {
+        r.removeListener(name);
+      }
+      if (!r.hasListeners()) {
+        this.removeDBHandle(handle);
+      }
+    } else {
+      this.removeDBHandlesAtPath(handle);
+    }
+    Log.d(TAG, "Removed listener " + name + " for " + handle);
     WritableMap resp = Arguments.createMap();
-    resp.putString("handle", path);
+    resp.putString("handle", handle);
     resp.putString("result", "success");
     callback.invoke(null, resp);
   }
@@ -573,147 +1609,75 @@ class FirestackDatabaseModule extends ReactContextBaseJavaModule {
     }
   }
 
-  private FirestackDBReference getDBHandle(final String path) {
-    if (!mDBListeners.containsKey(path)) {
+  private FirestackDBReference getDBHandle(final String handle,
+                                          final String path,
+                                          final FirestackQuerySpec querySpec) {
+    if (!mDBListeners.containsKey(handle)) {
       ReactContext ctx = getReactApplicationContext();
-      mDBListeners.put(path, new FirestackDBReference(ctx, path));
+      mDBListeners.put(handle, new FirestackDBReference(ctx, path, handle, querySpec, mDispatcher, mExecutor, mSnapshotCache, mRegistry));
     }
 
-    return mDBListeners.get(path);
-  }
-
-  private void saveDBHandle(final String path, final FirestackDBReference dbRef) {
-    mDBListeners.put(path, dbRef);
+    return mDBListeners.get(handle);
   }
 
-  private void removeDBHandle(final String path) {
-    if (mDBListeners.containsKey(path)) {
-      FirestackDBReference r = mDBListeners.get(path);
+  private void removeDBHandle(final String handle) {
+    if (mDBListeners.containsKey(handle)) {
+      FirestackDBReference r = mDBListeners.get(handle);
       r.cleanup();
-      mDBListeners.remove(path);
+      mDBListeners.remove(handle);
     }
   }
 
-  private String keyPath(final String path, final String eventName) {
-    return path + "-" + eventName;
+  private void removeDBHandlesAtPath(final String path) {
+    Iterator<Map.Entry<String, FirestackDBReference>> it = mDBListeners.entrySet().iterator();
+    while (it.hasNext()) {
+      FirestackDBReference r = it.next().getValue();
+      if (r.getPath().equals(path)) {
+        r.cleanup();
+        it.remove();
+      }
+    }
   }
 
-  // TODO: move to FirestackDBReference?
-  private DatabaseReference getDatabaseReferenceAtPath(final String path) {
-    DatabaseReference mDatabase = FirebaseDatabase.getInstance().getReference(path);
-    return mDatabase;
+  /**
+   * Listener registry key: (path, canonicalized query, event name)
+   */
+  private String listenerHandle(final String path,
+                                final FirestackQuerySpec querySpec,
+                                final String eventName,
+                                final boolean diff,
+                                final int chunkSize,
+                                final boolean foregroundOnly) {
+    StringBuilder handle = new StringBuilder(path);
+    handle.append('|').append(querySpec.getKey());
+    handle.append('|').append(eventName);
+    if (diff) {
+      handle.append("|diff");
+    } else if (chunkSize > 0) {
+      handle.append("|chunk:").append(chunkSize);
+    }
+    if (foregroundOnly) {
+      handle.append("|fg");
+    }
+    return handle.toString();
   }
 
-  private Query getDatabaseQueryAtPathAndModifiers(
-          final String path,
-          final ReadableArray modifiers) {
-    DatabaseReference ref = this.getDatabaseReferenceAtPath(path);
+  private boolean pausesInBackground(final FirestackDBReference ref) {
+    return mBackgroundPolicy.equals("all") ||
+           (mBackgroundPolicy.equals("foregroundOnly") && ref.isForegroundOnly());
+  }
 
-    List<Object> strModifiers = FirestackUtils.recursivelyDeconstructReadableArray(modifiers);
-    ListIterator<Object> it = strModifiers.listIterator();
-    Query query = ref.orderByKey();
-
-    while(it.hasNext()) {
-      String str = (String) it.next();
-      String[] strArr = str.split(":");
-      String methStr = strArr[0];
-
-      if (methStr.equalsIgnoreCase("orderByKey")) {
-        query = ref.orderByKey();
-      } else if (methStr.equalsIgnoreCase("orderByValue")) {
-        query = ref.orderByValue();
-      } else if (methStr.equalsIgnoreCase("orderByPriority")) {
-        query = ref.orderByPriority();
-      } else if (methStr.contains("orderByChild")) {
-        String key = strArr[1];
-        Log.d(TAG, "orderByChild: " + key);
-        query = ref.orderByChild(key);
-      } else if (methStr.contains("limitToLast")) {
-        String key = strArr[1];
-        int limit = Integer.parseInt(key);
-        Log.d(TAG, "limitToLast: " + limit);
-        query = query.limitToLast(limit);
-      } else if (methStr.contains("limitToFirst")) {
-        String key = strArr[1];
-        int limit = Integer.parseInt(key);
-        Log.d(TAG, "limitToFirst: " + limit);
-        query = query.limitToFirst(limit);
-      } else if (methStr.contains("equalTo")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.equalTo(value);
-        } else {
-          query = query.equalTo(value, key);
-        }
-      } else if (methStr.contains("endAt")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.endAt(value);
-        } else {
-          query = query.endAt(value, key);
-        }
-      } else if (methStr.contains("startAt")) {
-        String value = strArr[1];
-        String key = strArr.length >= 3 ? strArr[2] : null;
-        if (key == null) {
-          query = query.startAt(value);
-        } else {
-          query = query.startAt(value, key);
-        }
-      }
+  private int chunkSize(final String eventName, @Nullable final ReadableMap options) {
+    if (!eventName.equals("value") || options == null || !options.hasKey("chunkSize")) {
+      return 0;
     }
-
-    return query;
+    return Math.max(0, options.getInt("chunkSize"));
   }
 
-  private WritableMap dataSnapshotToMap(String name, String path, DataSnapshot dataSnapshot) {
-    return FirestackUtils.dataSnapshotToMap(name, path, dataSnapshot);
+  // TODO: move to FirestackDBReference?
+  private DatabaseReference getDatabaseReferenceAtPath(final String path) {
+    DatabaseReference mDatabase = FirebaseDatabase.getInstance().getReference(path);
+    return mDatabase;
   }
 
-  private <Any> Any castSnapshotValue(DataSnapshot snapshot) {
-    if (snapshot.hasChildren()) {
-      WritableMap data = Arguments.createMap();
-      for (DataSnapshot child : snapshot.getChildren()) {
-        Any castedChild = castSnapshotValue(child);
-        switch (castedChild.getClass().getName()) {
-          case "java.lang.Boolean":
-            data.putBoolean(child.getKey(), (Boolean) castedChild);
-            break;
-          case "java.lang.Long":
-            data.putDouble(child.getKey(), (Long) castedChild);
-            break;
-          case "java.lang.Double":
-            data.putDouble(child.getKey(), (Double) castedChild);
-            break;
-          case "java.lang.String":
-            data.putString(child.getKey(), (String) castedChild);
-            break;
-          case "com.facebook.react.bridge.WritableNativeMap":
-            data.putMap(child.getKey(), (WritableMap) castedChild);
-            break;
-        }
-      }
-      return (Any) data;
-    } else {
-      if (snapshot.getValue() != null) {
-        String type = snapshot.getValue().getClass().getName();
-        switch (type) {
-          case "java.lang.Boolean":
-            return (Any)((Boolean) snapshot.getValue());
-          case "java.lang.Long":
-            return (Any) ((Long) snapshot.getValue());
-          case "java.lang.Double":
-            return (Any)((Double) snapshot.getValue());
-          case "java.lang.String":
-            return (Any)((String) snapshot.getValue());
-          default:
-            return (Any) null;
-        }
-      } else {
-        return (Any) null;
-      }
-    }
-  }
 }
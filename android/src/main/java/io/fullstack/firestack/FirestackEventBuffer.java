@@ -0,0 +1,258 @@
+package io.fullstack.firestack;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+/**
+ * Holds events sent before the catalyst instance is active (auth state,
+ * messages and database events raised during startup) and sends them, in
+ * order, once it is.
+ *
+ * The buffer is bounded: past its capacity either the oldest buffered
+ * event or the incoming one is dropped, depending on the drop policy, and
+ * counted. While anything is buffered the main looper checks for the
+ * instance every DRAIN_INTERVAL ms, for up to MAX_WAIT ms; after that the
+ * next event sent (or a host resume) drains it.
+ *
+ * Events are handed to javascript outside the lock. One thread at a time
+ * drains; events sent meanwhile are queued behind it and sent by that
+ * thread, so they still go out in order.
+ */
+class FirestackEventBuffer {
+  private static final String TAG = "FirestackEventBuffer";
+
+  public static final int DEFAULT_CAPACITY = 500;
+  public static final String DROP_OLDEST = "dropOldest";
+  public static final String DROP_NEWEST = "dropNewest";
+
+  private static final int DRAIN_INTERVAL = 100;
+  private static final int MAX_WAIT = 60000;
+
+  private static class Entry {
+    final ReactContext context;
+    final String eventName;
+    final WritableMap params;
+
+    Entry(final ReactContext context, final String eventName, final WritableMap params) {
+      this.context = context;
+      this.eventName = eventName;
+      this.params = params;
+    }
+  }
+
+  private static final Object sLock = new Object();
+  private static final ArrayDeque<Entry> sBuffer = new ArrayDeque<Entry>();
+  private static int sCapacity = DEFAULT_CAPACITY;
+  private static String sDropPolicy = DROP_OLDEST;
+  private static long sDropped = 0;
+  private static Handler sHandler;
+  private static boolean sDrainScheduled = false;
+  private static boolean sDraining = false;
+  private static long sWaitingSince = 0;
+
+  private static final Runnable sDrainRunnable = new Runnable() {
+    @Override
+    public void run() {
+      ReactContext context;
+      synchronized (sLock) {
+        sDrainScheduled = false;
+        Entry head = sBuffer.peek();
+        if (head == null) {
+          return;
+        }
+        if (!head.context.hasActiveCatalystInstance()) {
+          if (System.currentTimeMillis() - sWaitingSince < MAX_WAIT) {
+            scheduleDrainLocked();
+          } else {
+            Log.w(TAG, "Still waiting for CatalystInstance, holding " + sBuffer.size() + " events");
+          }
+          return;
+        }
+        context = head.context;
+      }
+      drain(context);
+    }
+  };
+
+  private FirestackEventBuffer() {}
+
+  public static void send(final ReactContext context,
+                          final String eventName,
+                          final WritableMap params) {
+    synchronized (sLock) {
+      if (context.hasActiveCatalystInstance()) {
+        // queued behind anything buffered, or being drained right now
+        sBuffer.add(new Entry(context, eventName, params));
+        if (sDraining) {
+          return;
+        }
+        sDraining = true;
+      } else {
+        bufferLocked(context, eventName, params);
+        return;
+      }
+    }
+    drainLoop(context);
+  }
+
+  private static void bufferLocked(final ReactContext context,
+                                   final String eventName,
+                                   final WritableMap params) {
+    if (sBuffer.isEmpty()) {
+      Log.d(TAG, "Waiting for CatalystInstance before sending events");
+      sWaitingSince = System.currentTimeMillis();
+    }
+    if (sBuffer.size() >= sCapacity) {
+      sDropped++;
+      if (sDropPolicy.equals(DROP_NEWEST) || sCapacity == 0) {
+        Log.w(TAG, "Event buffer full, dropping " + eventName);
+        return;
+      }
+      Entry dropped = sBuffer.poll();
+      Log.w(TAG, "Event buffer full, dropping " + dropped.eventName);
+    }
+    sBuffer.add(new Entry(context, eventName, params));
+    scheduleDrainLocked();
+  }
+
+  /**
+   * Sends whatever is buffered if the catalyst instance is active
+   */
+  public static void drain(final ReactContext context) {
+    synchronized (sLock) {
+      if (sDraining || sBuffer.isEmpty() || !context.hasActiveCatalystInstance()) {
+        return;
+      }
+      sDraining = true;
+    }
+    drainLoop(context);
+  }
+
+  public static void configure(final int capacity, final String dropPolicy) {
+    synchronized (sLock) {
+      sCapacity = Math.max(0, capacity);
+      sDropPolicy = DROP_NEWEST.equals(dropPolicy) ? DROP_NEWEST : DROP_OLDEST;
+      // shrinking drops what the policy would have dropped had the
+      // capacity been this small all along
+      while (sBuffer.size() > sCapacity) {
+        if (sDropPolicy.equals(DROP_NEWEST)) {
+          sBuffer.pollLast();
+        } else {
+          sBuffer.poll();
+        }
+        sDropped++;
+      }
+    }
+  }
+
+  public static int getCapacity() {
+    synchronized (sLock) {
+      return sCapacity;
+    }
+  }
+
+  public static String getDropPolicy() {
+    synchronized (sLock) {
+      return sDropPolicy;
+    }
+  }
+
+  public static int getBufferedCount() {
+    synchronized (sLock) {
+      return sBuffer.size();
+    }
+  }
+
+  public static long getDroppedCount() {
+    synchronized (sLock) {
+      return sDropped;
+    }
+  }
+
+  public static void resetDroppedCount() {
+    synchronized (sLock) {
+      sDropped = 0;
+    }
+  }
+
+  /**
+   * Takes the buffer in batches under the lock and emits each batch after
+   * releasing it, until nothing is left. Only called by the thread that
+   * set sDraining
+   */
+  private static void drainLoop(final ReactContext context) {
+    boolean done = false;
+    try {
+      while (!done) {
+        List<Entry> batch;
+        synchronized (sLock) {
+          if (sBuffer.isEmpty()) {
+            sDraining = false;
+            done = true;
+            break;
+          }
+          batch = takeLocked(context);
+        }
+        for (Entry entry : batch) {
+          emit(entry.context, entry.eventName, entry.params);
+        }
+        if (batch.size() > 1) {
+          Log.d(TAG, "Sent " + batch.size() + " buffered events");
+        }
+      }
+    } finally {
+      if (!done) {
+        // emit threw; let the next send drain what is left
+        synchronized (sLock) {
+          sDraining = false;
+        }
+      }
+    }
+  }
+
+  // events buffered for a context that has since gone away (e.g. before a
+  // reload) have nobody left to receive them, so they are dropped
+  private static List<Entry> takeLocked(final ReactContext context) {
+    List<Entry> batch = new ArrayList<Entry>(sBuffer.size());
+    Iterator<Entry> it = sBuffer.iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      it.remove();
+      if (entry.context == context || entry.context.hasActiveCatalystInstance()) {
+        batch.add(entry);
+      } else {
+        sDropped++;
+      }
+    }
+    return batch;
+  }
+
+  private static void scheduleDrainLocked() {
+    if (sDrainScheduled) {
+      return;
+    }
+    if (sHandler == null) {
+      sHandler = new Handler(Looper.getMainLooper());
+    }
+    sDrainScheduled = true;
+    sHandler.postDelayed(sDrainRunnable, DRAIN_INTERVAL);
+  }
+
+  private static void emit(final ReactContext context,
+                           final String eventName,
+                           final WritableMap params) {
+    context
+      .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+      .emit(eventName, params);
+  }
+}
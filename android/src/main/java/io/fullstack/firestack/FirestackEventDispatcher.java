@@ -0,0 +1,133 @@
+package io.fullstack.firestack;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Coalesces events bound for javascript into a single bridge crossing.
+ *
+ * When batching is enabled, events are queued in order and sent as one
+ * `<batchEventName>` event ({ events: [...] }) once the flush interval has
+ * elapsed or the batch reaches its maximum size, whichever comes first.
+ * When disabled, every event is sent straight through as `<eventName>`.
+ */
+class FirestackEventDispatcher {
+  private static final String TAG = "FirestackEventDispatcher";
+
+  public static final int DEFAULT_FLUSH_INTERVAL = 16;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 200;
+
+  private final ReactContext mReactContext;
+  private final String mEventName;
+  private final String mBatchEventName;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final Object mLock = new Object();
+
+  private boolean mEnabled = false;
+  private int mFlushInterval = DEFAULT_FLUSH_INTERVAL;
+  private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+  private WritableArray mPending;
+  private int mPendingCount = 0;
+  private boolean mFlushScheduled = false;
+
+  private final Runnable mFlushRunnable = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (mLock) {
+        mFlushScheduled = false;
+        flushLocked();
+      }
+    }
+  };
+
+  public FirestackEventDispatcher(final ReactContext context,
+                                  final String eventName,
+                                  final String batchEventName) {
+    mReactContext = context;
+    mEventName = eventName;
+    mBatchEventName = batchEventName;
+  }
+
+  public void configure(final boolean enabled,
+                        final int flushInterval,
+                        final int maxBatchSize) {
+    synchronized (mLock) {
+      flushLocked();
+      mEnabled = enabled;
+      mFlushInterval = Math.max(0, flushInterval);
+      mMaxBatchSize = Math.max(1, maxBatchSize);
+      Log.d(TAG, "Batching " + mEventName + " enabled: " + mEnabled +
+                 " interval: " + mFlushInterval + "ms max: " + mMaxBatchSize);
+    }
+  }
+
+  public void dispatch(final WritableMap evt) {
+    synchronized (mLock) {
+      if (!mEnabled) {
+        flushLocked();
+        FirestackUtils.sendEvent(mReactContext, mEventName, evt);
+        return;
+      }
+
+      if (mPending == null) {
+        mPending = Arguments.createArray();
+      }
+      // recorded before pushMap, which hands the map over to the batch
+      FirestackMetrics.recordEmit(mEventName, evt);
+      mPending.pushMap(evt);
+      mPendingCount++;
+
+      if (mPendingCount >= mMaxBatchSize) {
+        flushLocked();
+      } else if (!mFlushScheduled) {
+        mFlushScheduled = true;
+        mHandler.postDelayed(mFlushRunnable, mFlushInterval);
+      }
+    }
+  }
+
+  /**
+   * Sends evt on its own, after anything already queued, even while
+   * batching is enabled
+   */
+  public void dispatchNow(final WritableMap evt) {
+    synchronized (mLock) {
+      flushLocked();
+      FirestackUtils.sendEvent(mReactContext, mEventName, evt);
+    }
+  }
+
+  /**
+   * Sends anything queued right away, e.g. before an event that has to
+   * stay ordered after the queued ones
+   */
+  public void flush() {
+    synchronized (mLock) {
+      flushLocked();
+    }
+  }
+
+  private void flushLocked() {
+    if (mFlushScheduled) {
+      mHandler.removeCallbacks(mFlushRunnable);
+      mFlushScheduled = false;
+    }
+    if (mPendingCount == 0) {
+      return;
+    }
+
+    WritableMap batch = Arguments.createMap();
+    batch.putArray("events", mPending);
+    mPending = null;
+    mPendingCount = 0;
+
+    FirestackUtils.emitEvent(mReactContext, mBatchEventName, batch);
+  }
+}
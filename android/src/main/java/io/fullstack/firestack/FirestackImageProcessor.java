@@ -0,0 +1,204 @@
+package io.fullstack.firestack;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.support.media.ExifInterface;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.facebook.react.bridge.ReadableMap;
+
+/**
+ * Shrinks and re-encodes photos before they are uploaded, so a 12 MP
+ * camera image goes up at the size it will be shown at.
+ *
+ * The image is decoded at the largest power of two subsample that still
+ * covers maxDimension, so memory stays near the output size whatever the
+ * input, then scaled to fit, turned upright from its EXIF orientation and
+ * written as a new JPEG or WebP. The output carries no EXIF (location,
+ * device) at all. Anything that does not decode as an image is left for
+ * the caller to upload untouched.
+ */
+class FirestackImageProcessor {
+  private static final String TAG = "FirestackImageProcessor";
+  private static final String DIRECTORY = "firestack-uploads";
+
+  public static final int DEFAULT_QUALITY = 85;
+
+  static class Options {
+    final int maxDimension;
+    final Bitmap.CompressFormat format;
+    final int quality;
+
+    Options(final ReadableMap options) {
+      maxDimension = options.hasKey("maxDimension") ? Math.max(1, options.getInt("maxDimension")) : 0;
+      String format = options.hasKey("format") ? options.getString("format") : "jpeg";
+      this.format = "webp".equals(format) ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+      quality = options.hasKey("quality") ?
+        Math.max(0, Math.min(100, options.getInt("quality"))) :
+        DEFAULT_QUALITY;
+    }
+
+    String contentType() {
+      return format == Bitmap.CompressFormat.WEBP ? "image/webp" : "image/jpeg";
+    }
+
+    String extension() {
+      return format == Bitmap.CompressFormat.WEBP ? ".webp" : ".jpg";
+    }
+  }
+
+  static class Result {
+    final File file;
+    final int width;
+    final int height;
+
+    Result(final File file, final int width, final int height) {
+      this.file = file;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  private FirestackImageProcessor() {}
+
+  /**
+   * Writes the processed image to the upload cache directory, named for
+   * id. Returns null when source is not an image
+   */
+  public static Result process(final Context context,
+                               final String id,
+                               final Uri source,
+                               final Options options) throws IOException {
+    ContentResolver resolver = context.getContentResolver();
+
+    BitmapFactory.Options bounds = new BitmapFactory.Options();
+    bounds.inJustDecodeBounds = true;
+    decode(resolver, source, bounds);
+    if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+      return null;
+    }
+
+    BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+    decodeOptions.inSampleSize = sampleSize(bounds.outWidth, bounds.outHeight, options.maxDimension);
+    Bitmap bitmap = decode(resolver, source, decodeOptions);
+    if (bitmap == null) {
+      return null;
+    }
+
+    bitmap = transform(bitmap, options.maxDimension, orientation(resolver, source));
+
+    File dir = new File(context.getCacheDir(), DIRECTORY);
+    dir.mkdirs();
+    File out = new File(dir, id + options.extension());
+    OutputStream stream = new FileOutputStream(out);
+    try {
+      if (!bitmap.compress(options.format, options.quality, stream)) {
+        throw new IOException("Could not encode " + source);
+      }
+    } finally {
+      stream.close();
+    }
+
+    Result result = new Result(out, bitmap.getWidth(), bitmap.getHeight());
+    bitmap.recycle();
+    Log.d(TAG, "Processed " + source + " to " + result.width + "x" + result.height + ", " + out.length() + " bytes");
+    return result;
+  }
+
+  /**
+   * Whether path is a processed image, which is ours to delete once its
+   * upload is over
+   */
+  public static boolean isProcessedFile(final Context context, final String path) {
+    File dir = new File(context.getCacheDir(), DIRECTORY);
+    return path != null && path.startsWith(dir.getAbsolutePath() + File.separator);
+  }
+
+  private static Bitmap decode(final ContentResolver resolver,
+                               final Uri source,
+                               final BitmapFactory.Options options) throws IOException {
+    InputStream in = resolver.openInputStream(source);
+    if (in == null) {
+      throw new IOException("Could not open " + source);
+    }
+    try {
+      return BitmapFactory.decodeStream(in, null, options);
+    } finally {
+      in.close();
+    }
+  }
+
+  static int sampleSize(final int width, final int height, final int maxDimension) {
+    if (maxDimension <= 0) {
+      return 1;
+    }
+    int largest = Math.max(width, height);
+    int sampleSize = 1;
+    while (largest / (sampleSize * 2) >= maxDimension) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  private static Bitmap transform(final Bitmap bitmap, final int maxDimension, final int degrees) {
+    int largest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+    float scale = maxDimension > 0 && largest > maxDimension ? (float) maxDimension / largest : 1f;
+    if (scale == 1f && degrees == 0) {
+      return bitmap;
+    }
+    Matrix matrix = new Matrix();
+    matrix.postScale(scale, scale);
+    matrix.postRotate(degrees);
+    Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+    if (transformed != bitmap) {
+      bitmap.recycle();
+    }
+    return transformed;
+  }
+
+  // the framework ExifInterface only reads files before API 24, and
+  // documents picked through the storage access framework have no
+  // MediaStore orientation column, so the support library one reads the
+  // EXIF from the stream whatever the source
+  private static int orientation(final ContentResolver resolver, final Uri source) {
+    InputStream in = null;
+    try {
+      in = resolver.openInputStream(source);
+      if (in == null) {
+        return 0;
+      }
+      ExifInterface exif = new ExifInterface(in);
+      switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+        case ExifInterface.ORIENTATION_ROTATE_90:
+          return 90;
+        case ExifInterface.ORIENTATION_ROTATE_180:
+          return 180;
+        case ExifInterface.ORIENTATION_ROTATE_270:
+          return 270;
+        default:
+          return 0;
+      }
+    } catch (Exception ex) {
+      Log.w(TAG, "Could not read orientation of " + source);
+      return 0;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ex) {
+          // nothing left to read from it
+        }
+      }
+    }
+  }
+}
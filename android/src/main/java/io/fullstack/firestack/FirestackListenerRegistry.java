@@ -0,0 +1,78 @@
+package io.fullstack.firestack;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Counts the native listeners actually attached to Firebase, per path and
+ * kind (value, child, once), so listeners that outlive their javascript
+ * subscribers show up instead of silently costing bandwidth.
+ */
+class FirestackListenerRegistry {
+  private final HashMap<String, HashMap<String, Integer>> mLive =
+    new HashMap<String, HashMap<String, Integer>>();
+  private int mTotal = 0;
+
+  public synchronized void attached(final String path, final String kind) {
+    HashMap<String, Integer> kinds = mLive.get(path);
+    if (kinds == null) {
+      kinds = new HashMap<String, Integer>();
+      mLive.put(path, kinds);
+    }
+    Integer count = kinds.get(kind);
+    kinds.put(kind, count == null ? 1 : count + 1);
+    mTotal++;
+  }
+
+  public synchronized void detached(final String path, final String kind) {
+    HashMap<String, Integer> kinds = mLive.get(path);
+    Integer count = kinds == null ? null : kinds.get(kind);
+    if (count == null) {
+      return;
+    }
+    if (count <= 1) {
+      kinds.remove(kind);
+      if (kinds.isEmpty()) {
+        mLive.remove(path);
+      }
+    } else {
+      kinds.put(kind, count - 1);
+    }
+    mTotal--;
+  }
+
+  public synchronized int getLiveCount() {
+    return mTotal;
+  }
+
+  public synchronized int getLiveCount(final String kind) {
+    int count = 0;
+    for (HashMap<String, Integer> kinds : mLive.values()) {
+      Integer n = kinds.get(kind);
+      count += n == null ? 0 : n;
+    }
+    return count;
+  }
+
+  /**
+   * { path: { value: n, child: n, once: n } } for every path with a live listener
+   */
+  public synchronized WritableMap toMap() {
+    WritableMap map = Arguments.createMap();
+    for (Map.Entry<String, HashMap<String, Integer>> path : mLive.entrySet()) {
+      WritableMap kinds = Arguments.createMap();
+      for (Map.Entry<String, Integer> kind : path.getValue().entrySet()) {
+        kinds.putInt(kind.getKey(), kind.getValue());
+      }
+      map.putMap(path.getKey(), kinds);
+    }
+    return map;
+  }
+
+  public synchronized String describe() {
+    return mLive.toString();
+  }
+}
@@ -0,0 +1,248 @@
+package io.fullstack.firestack;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Downloaded storage files on disk, named by the md5 hash storage reports
+ * for them, so a file whose download url changed (e.g. a rotated token)
+ * but whose content did not is never fetched twice.
+ *
+ * Files are evicted least recently used first once together they pass
+ * maxBytes; recency survives restarts as each file's modified time.
+ * Files are checked against their hash before they are admitted.
+ */
+class FirestackMediaCache {
+  private static final String TAG = "FirestackMediaCache";
+  private static final String DIRECTORY = "firestack-media";
+  private static final String PART_SUFFIX = ".part";
+
+  public static final long DEFAULT_MAX_BYTES = 100 * 1024 * 1024;
+
+  private final File mDir;
+  // file name -> size, least recently used first
+  private final LinkedHashMap<String, Long> mFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private long mMaxBytes = DEFAULT_MAX_BYTES;
+  private long mBytes = 0;
+  private long mHits = 0;
+  private long mMisses = 0;
+  private long mBytesSaved = 0;
+  private long mBytesDownloaded = 0;
+
+  public FirestackMediaCache(final Context context) {
+    mDir = new File(context.getCacheDir(), DIRECTORY);
+    restore();
+  }
+
+  /**
+   * The cached file for a storage md5 hash (base64, as storage reports
+   * it), or null
+   */
+  public synchronized File get(final String md5Hash) {
+    String name = fileName(md5Hash);
+    Long size = name == null ? null : mFiles.get(name);
+    File file = name == null ? null : new File(mDir, name);
+    if (size == null || !file.exists()) {
+      if (size != null) {
+        mFiles.remove(name);
+        mBytes -= size;
+      }
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    mBytesSaved += size;
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  /**
+   * Where admit() will put the file for md5Hash, or null for a hash that
+   * can't be cached
+   */
+  public File fileFor(final String md5Hash) {
+    String name = fileName(md5Hash);
+    return name == null ? null : new File(mDir, name);
+  }
+
+  /**
+   * Somewhere to download a file into before admit(), in the cache
+   * directory so admitting it is a rename
+   */
+  public File newPartFile() {
+    mDir.mkdirs();
+    return new File(mDir, UUID.randomUUID().toString() + PART_SUFFIX);
+  }
+
+  /**
+   * Moves a downloaded file into the cache under its hash. Returns the
+   * cached file, or null (and deletes the download) when its content does
+   * not match the hash
+   */
+  public File admit(final String md5Hash, final File part) throws IOException {
+    String name = fileName(md5Hash);
+    if (!matches(md5Hash, part)) {
+      Log.w(TAG, "Downloaded file does not match " + md5Hash);
+      part.delete();
+      return null;
+    }
+
+    synchronized (this) {
+      File file = new File(mDir, name);
+      Long previous = mFiles.remove(name);
+      if (previous != null) {
+        mBytes -= previous;
+      }
+      if ((file.exists() && !file.delete()) || !part.renameTo(file)) {
+        throw new IOException("Could not move download into " + mDir);
+      }
+      long size = file.length();
+      mFiles.put(name, size);
+      mBytes += size;
+      mBytesDownloaded += size;
+      trim(name);
+      return file;
+    }
+  }
+
+  public synchronized void configure(final long maxBytes) {
+    mMaxBytes = Math.max(0, maxBytes);
+    trim(null);
+  }
+
+  public synchronized void clear() {
+    for (String name : mFiles.keySet()) {
+      new File(mDir, name).delete();
+    }
+    mFiles.clear();
+    mBytes = 0;
+  }
+
+  public synchronized long getMaxBytes() {
+    return mMaxBytes;
+  }
+
+  public synchronized long getBytes() {
+    return mBytes;
+  }
+
+  public synchronized int getCount() {
+    return mFiles.size();
+  }
+
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  public synchronized long getMisses() {
+    return mMisses;
+  }
+
+  public synchronized long getBytesSaved() {
+    return mBytesSaved;
+  }
+
+  public synchronized long getBytesDownloaded() {
+    return mBytesDownloaded;
+  }
+
+  // keep survives even when it alone is over maxBytes, so the file just
+  // admitted is still there for its caller
+  private void trim(final String keep) {
+    Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+    while (mBytes > mMaxBytes && it.hasNext()) {
+      Map.Entry<String, Long> oldest = it.next();
+      if (oldest.getKey().equals(keep)) {
+        continue;
+      }
+      new File(mDir, oldest.getKey()).delete();
+      mBytes -= oldest.getValue();
+      it.remove();
+    }
+  }
+
+  // partial downloads left by a previous process are of no use
+  private void restore() {
+    File[] files = mDir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      if (file.getName().endsWith(PART_SUFFIX)) {
+        file.delete();
+        continue;
+      }
+      mFiles.put(file.getName(), file.length());
+      mBytes += file.length();
+    }
+    trim(null);
+  }
+
+  // storage md5 hashes are base64, which may contain '/'
+  private static String fileName(final String md5Hash) {
+    if (md5Hash == null) {
+      return null;
+    }
+    try {
+      byte[] digest = Base64.decode(md5Hash, Base64.DEFAULT);
+      return digest == null || digest.length != 16 ? null : hex(digest);
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Whether file's content has the storage md5 hash md5Hash
+   */
+  static boolean matches(final String md5Hash, final File file) throws IOException {
+    String name = fileName(md5Hash);
+    return name != null && name.equals(hexDigest(file));
+  }
+
+  private static String hexDigest(final File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        md5.update(buffer, 0, read);
+      }
+      return hex(md5.digest());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IOException(ex.getMessage());
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String hex(final byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+}
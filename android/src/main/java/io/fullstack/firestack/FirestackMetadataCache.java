@@ -0,0 +1,254 @@
+package io.fullstack.firestack;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.firebase.storage.StorageMetadata;
+
+/**
+ * Download urls and metadata of storage objects, keyed by bucket and
+ * path, so rendering the same image again does not cost a round trip.
+ *
+ * Entries expire ttl ms after they were fetched and the least recently
+ * used are evicted past maxEntries. The cache is written through to
+ * SharedPreferences so it survives restarts. An entry may hold only the
+ * url (from a url only lookup); such an entry does not answer lookups
+ * that need metadata.
+ */
+class FirestackMetadataCache {
+  private static final String TAG = "FirestackMetadataCache";
+  private static final String PREFS_NAME = "FirestackMetadataCache";
+
+  public static final int DEFAULT_MAX_ENTRIES = 500;
+  public static final long DEFAULT_TTL = 60 * 60 * 1000;
+
+  static class Entry {
+    final String bucket;
+    final String path;
+    final String url;
+    final boolean hasMetadata;
+    String name;
+    String md5Hash;
+    String contentType;
+    String contentEncoding;
+    String generation;
+    long sizeBytes;
+    long createdAt;
+    long updatedAt;
+    final long fetchedAt;
+
+    Entry(final String bucket, final String path, final String url, final boolean hasMetadata, final long fetchedAt) {
+      this.bucket = bucket;
+      this.path = path;
+      this.url = url;
+      this.hasMetadata = hasMetadata;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private final SharedPreferences mPrefs;
+  private final LinkedHashMap<String, Entry> mEntries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+  private long mTtl = DEFAULT_TTL;
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  public FirestackMetadataCache(final Context context) {
+    mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    restore();
+  }
+
+  public static String key(final String bucket, final String path) {
+    return bucket + "/" + path;
+  }
+
+  /**
+   * A fresh entry for bucket and path, or null. needMetadata skips entries
+   * holding only a url
+   */
+  public synchronized Entry get(final String bucket, final String path, final boolean needMetadata) {
+    String key = key(bucket, path);
+    Entry entry = mEntries.get(key);
+    long now = System.currentTimeMillis();
+    if (entry != null && now - entry.fetchedAt >= mTtl) {
+      remove(key);
+      entry = null;
+    }
+    if (entry == null || (needMetadata && !entry.hasMetadata)) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    return entry;
+  }
+
+  public synchronized Entry putUrl(final String bucket, final String path, final String url) {
+    Entry entry = new Entry(bucket, path, url, false, System.currentTimeMillis());
+    put(entry);
+    return entry;
+  }
+
+  public synchronized Entry putMetadata(final String bucket,
+                                        final String path,
+                                        final String url,
+                                        final StorageMetadata metadata) {
+    Entry entry = new Entry(bucket, path, url, true, System.currentTimeMillis());
+    entry.name = metadata.getName();
+    entry.md5Hash = metadata.getMd5Hash();
+    entry.contentType = metadata.getContentType();
+    entry.contentEncoding = metadata.getContentEncoding();
+    entry.generation = metadata.getGeneration();
+    entry.sizeBytes = metadata.getSizeBytes();
+    entry.createdAt = metadata.getCreationTimeMillis();
+    entry.updatedAt = metadata.getUpdatedTimeMillis();
+    put(entry);
+    return entry;
+  }
+
+  public synchronized void invalidate(final String bucket, final String path) {
+    remove(key(bucket, path));
+  }
+
+  public synchronized void clear() {
+    mEntries.clear();
+    mPrefs.edit().clear().apply();
+  }
+
+  public synchronized void configure(final int maxEntries, final long ttl) {
+    mMaxEntries = Math.max(0, maxEntries);
+    mTtl = Math.max(0, ttl);
+    trim();
+  }
+
+  public synchronized int getMaxEntries() {
+    return mMaxEntries;
+  }
+
+  public synchronized long getTtl() {
+    return mTtl;
+  }
+
+  public synchronized int getCount() {
+    return mEntries.size();
+  }
+
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  public synchronized long getMisses() {
+    return mMisses;
+  }
+
+  private void put(final Entry entry) {
+    if (mMaxEntries == 0) {
+      return;
+    }
+    String key = key(entry.bucket, entry.path);
+    mEntries.put(key, entry);
+    persist(key, entry);
+    trim();
+  }
+
+  private void remove(final String key) {
+    if (mEntries.remove(key) != null) {
+      mPrefs.edit().remove(key).apply();
+    }
+  }
+
+  private void trim() {
+    if (mEntries.size() <= mMaxEntries) {
+      return;
+    }
+    SharedPreferences.Editor editor = mPrefs.edit();
+    Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+    while (mEntries.size() > mMaxEntries && it.hasNext()) {
+      editor.remove(it.next().getKey());
+      it.remove();
+    }
+    editor.apply();
+  }
+
+  private void persist(final String key, final Entry entry) {
+    try {
+      JSONObject json = new JSONObject();
+      json.put("bucket", entry.bucket);
+      json.put("path", entry.path);
+      json.put("url", entry.url);
+      json.put("hasMetadata", entry.hasMetadata);
+      json.putOpt("name", entry.name);
+      json.putOpt("md5Hash", entry.md5Hash);
+      json.putOpt("contentType", entry.contentType);
+      json.putOpt("contentEncoding", entry.contentEncoding);
+      json.putOpt("generation", entry.generation);
+      json.put("sizeBytes", entry.sizeBytes);
+      json.put("createdAt", entry.createdAt);
+      json.put("updatedAt", entry.updatedAt);
+      json.put("fetchedAt", entry.fetchedAt);
+      mPrefs.edit().putString(key, json.toString()).apply();
+    } catch (JSONException ex) {
+      Log.e(TAG, "Could not persist " + key, ex);
+    }
+  }
+
+  // entries are read back oldest fetch first, which stands in for the
+  // access order that was lost with the process
+  private void restore() {
+    List<Entry> restored = new ArrayList<Entry>();
+    long now = System.currentTimeMillis();
+    SharedPreferences.Editor editor = mPrefs.edit();
+    for (Map.Entry<String, ?> pref : mPrefs.getAll().entrySet()) {
+      if (!(pref.getValue() instanceof String)) {
+        continue;
+      }
+      try {
+        JSONObject json = new JSONObject((String) pref.getValue());
+        Entry entry = new Entry(json.optString("bucket"),
+          json.optString("path"),
+          json.optString("url"),
+          json.optBoolean("hasMetadata", false),
+          json.optLong("fetchedAt", 0));
+        if (now - entry.fetchedAt >= mTtl) {
+          editor.remove(pref.getKey());
+          continue;
+        }
+        entry.name = json.optString("name", null);
+        entry.md5Hash = json.optString("md5Hash", null);
+        entry.contentType = json.optString("contentType", null);
+        entry.contentEncoding = json.optString("contentEncoding", null);
+        entry.generation = json.optString("generation", null);
+        entry.sizeBytes = json.optLong("sizeBytes", 0);
+        entry.createdAt = json.optLong("createdAt", 0);
+        entry.updatedAt = json.optLong("updatedAt", 0);
+        restored.add(entry);
+      } catch (JSONException ex) {
+        editor.remove(pref.getKey());
+      }
+    }
+    editor.apply();
+
+    Collections.sort(restored, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        return a.fetchedAt < b.fetchedAt ? -1 : (a.fetchedAt == b.fetchedAt ? 0 : 1);
+      }
+    });
+    for (Entry entry : restored) {
+      mEntries.put(key(entry.bucket, entry.path), entry);
+    }
+    trim();
+  }
+}
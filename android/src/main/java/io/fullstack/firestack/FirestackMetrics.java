@@ -0,0 +1,249 @@
+package io.fullstack.firestack;
+
+import java.util.HashMap;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Opt-in counters for what we push over the bridge, per event name and
+ * path: how many events, an estimate of their size, how long they took to
+ * serialize, and the emit rate since the last reset.
+ *
+ * Disabled, every record call returns after one volatile read. Enabled,
+ * each emitted payload is walked once to estimate its size, so this is
+ * meant for finding heavy listeners rather than for leaving on.
+ */
+class FirestackMetrics {
+  // past this many event/path pairs everything else is counted together
+  private static final int MAX_KEYS = 256;
+  private static final String OTHER_KEY = "(other)";
+
+  // histogram upper bounds; the last bucket is everything above
+  private static final long[] BYTES_BOUNDS = {256, 1024, 4096, 16384, 65536, 262144, 1048576};
+  private static final long[] MICROS_BOUNDS = {100, 500, 1000, 4000, 16000, 50000, 200000};
+
+  private static class Stats {
+    final String eventName;
+    final String path;
+    long count = 0;
+    long bytes = 0;
+    long maxBytes = 0;
+    final long[] bytesHistogram = new long[BYTES_BOUNDS.length + 1];
+    long serializations = 0;
+    long serializationMicros = 0;
+    long maxSerializationMicros = 0;
+    final long[] serializationHistogram = new long[MICROS_BOUNDS.length + 1];
+    long firstEmit = 0;
+    long lastEmit = 0;
+
+    Stats(final String eventName, final String path) {
+      this.eventName = eventName;
+      this.path = path;
+    }
+  }
+
+  private static volatile boolean sEnabled = false;
+  private static final HashMap<String, Stats> sStats = new HashMap<String, Stats>();
+  private static long sSince = System.currentTimeMillis();
+
+  private FirestackMetrics() {}
+
+  public static boolean isEnabled() {
+    return sEnabled;
+  }
+
+  public static void setEnabled(final boolean enabled) {
+    sEnabled = enabled;
+  }
+
+  public static void recordEmit(final String eventName, final ReadableMap payload) {
+    if (!sEnabled) {
+      return;
+    }
+    String path = "";
+    if (payload != null && payload.hasKey("path") && !payload.isNull("path")) {
+      path = payload.getString("path");
+    }
+    long bytes = estimateSize(payload);
+    long now = System.currentTimeMillis();
+
+    synchronized (sStats) {
+      Stats stats = stats(eventName, path);
+      stats.count++;
+      stats.bytes += bytes;
+      stats.maxBytes = Math.max(stats.maxBytes, bytes);
+      stats.bytesHistogram[bucket(BYTES_BOUNDS, bytes)]++;
+      if (stats.firstEmit == 0) {
+        stats.firstEmit = now;
+      }
+      stats.lastEmit = now;
+    }
+  }
+
+  public static void recordSerialization(final String eventName, final String path, final long nanos) {
+    if (!sEnabled) {
+      return;
+    }
+    long micros = nanos / 1000;
+
+    synchronized (sStats) {
+      Stats stats = stats(eventName, path);
+      stats.serializations++;
+      stats.serializationMicros += micros;
+      stats.maxSerializationMicros = Math.max(stats.maxSerializationMicros, micros);
+      stats.serializationHistogram[bucket(MICROS_BOUNDS, micros)]++;
+    }
+  }
+
+  public static void reset() {
+    synchronized (sStats) {
+      sStats.clear();
+      sSince = System.currentTimeMillis();
+    }
+  }
+
+  public static WritableMap toMap() {
+    WritableMap res = Arguments.createMap();
+    WritableArray events = Arguments.createArray();
+    long totalCount = 0;
+    long totalBytes = 0;
+
+    synchronized (sStats) {
+      for (Stats stats : sStats.values()) {
+        WritableMap event = Arguments.createMap();
+        event.putString("eventName", stats.eventName);
+        event.putString("path", stats.path);
+        event.putDouble("count", stats.count);
+        event.putDouble("bytes", stats.bytes);
+        event.putDouble("maxBytes", stats.maxBytes);
+        event.putDouble("avgBytes", stats.count == 0 ? 0 : (double) stats.bytes / stats.count);
+        event.putMap("bytesHistogram", histogram(BYTES_BOUNDS, stats.bytesHistogram));
+        event.putDouble("serializations", stats.serializations);
+        event.putDouble("serializationMs", stats.serializationMicros / 1000d);
+        event.putDouble("maxSerializationMs", stats.maxSerializationMicros / 1000d);
+        event.putMap("serializationHistogram", histogram(MICROS_BOUNDS, stats.serializationHistogram));
+        event.putDouble("firstEmit", stats.firstEmit);
+        event.putDouble("lastEmit", stats.lastEmit);
+        long elapsed = stats.lastEmit - stats.firstEmit;
+        event.putDouble("ratePerSecond", elapsed <= 0 ? stats.count : stats.count * 1000d / elapsed);
+        events.pushMap(event);
+
+        totalCount += stats.count;
+        totalBytes += stats.bytes;
+      }
+      res.putDouble("since", sSince);
+    }
+
+    res.putBoolean("enabled", sEnabled);
+    res.putDouble("count", totalCount);
+    res.putDouble("bytes", totalBytes);
+    res.putArray("events", events);
+    return res;
+  }
+
+  private static Stats stats(final String eventName, final String path) {
+    String key = eventName + "|" + path;
+    Stats stats = sStats.get(key);
+    if (stats == null) {
+      if (sStats.size() >= MAX_KEYS) {
+        key = eventName + "|" + OTHER_KEY;
+        stats = sStats.get(key);
+        if (stats == null) {
+          stats = new Stats(eventName, OTHER_KEY);
+          sStats.put(key, stats);
+        }
+        return stats;
+      }
+      stats = new Stats(eventName, path);
+      sStats.put(key, stats);
+    }
+    return stats;
+  }
+
+  private static int bucket(final long[] bounds, final long value) {
+    for (int i = 0; i < bounds.length; i++) {
+      if (value < bounds[i]) {
+        return i;
+      }
+    }
+    return bounds.length;
+  }
+
+  // { bounds: [...], counts: [...] }, counts has one more entry than bounds
+  private static WritableMap histogram(final long[] bounds, final long[] counts) {
+    WritableArray boundsArray = Arguments.createArray();
+    for (long bound : bounds) {
+      boundsArray.pushDouble(bound);
+    }
+    WritableArray countsArray = Arguments.createArray();
+    for (long count : counts) {
+      countsArray.pushDouble(count);
+    }
+    WritableMap map = Arguments.createMap();
+    map.putArray("bounds", boundsArray);
+    map.putArray("counts", countsArray);
+    return map;
+  }
+
+  /**
+   * Rough size of the JSON javascript will see: keys and strings by their
+   * length, numbers and booleans at a flat 8 bytes, plus punctuation
+   */
+  private static long estimateSize(final ReadableMap map) {
+    if (map == null) {
+      return 4;
+    }
+    long bytes = 2;
+    ReadableMapKeySetIterator iterator = map.keySetIterator();
+    while (iterator.hasNextKey()) {
+      String key = iterator.nextKey();
+      bytes += key.length() + 4;
+      switch (map.getType(key)) {
+        case String:
+          bytes += map.getString(key).length() + 2;
+          break;
+        case Map:
+          bytes += estimateSize(map.getMap(key));
+          break;
+        case Array:
+          bytes += estimateSize(map.getArray(key));
+          break;
+        case Null:
+          bytes += 4;
+          break;
+        default:
+          bytes += 8;
+      }
+    }
+    return bytes;
+  }
+
+  private static long estimateSize(final ReadableArray array) {
+    long bytes = 2;
+    for (int i = 0; i < array.size(); i++) {
+      bytes += 1;
+      switch (array.getType(i)) {
+        case String:
+          bytes += array.getString(i).length() + 2;
+          break;
+        case Map:
+          bytes += estimateSize(array.getMap(i));
+          break;
+        case Array:
+          bytes += estimateSize(array.getArray(i));
+          break;
+        case Null:
+          bytes += 4;
+          break;
+        default:
+          bytes += 8;
+      }
+    }
+    return bytes;
+  }
+}
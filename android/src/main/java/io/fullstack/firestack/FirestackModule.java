@@ -177,6 +177,66 @@ class FirestackModule extends ReactContextBaseJavaModule implements LifecycleEve
     }
   }
 
+  /**
+   * Opt-in bridge metrics: event counts, payload size estimates,
+   * serialization time and emit rate per event name and path
+   */
+  @ReactMethod
+  public void setMetricsEnabled(final Boolean enabled, final Callback callback) {
+    FirestackMetrics.setEnabled(enabled);
+
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putBoolean("enabled", enabled);
+    callback.invoke(null, res);
+  }
+
+  @ReactMethod
+  public void getMetrics(final Callback callback) {
+    WritableMap metrics = FirestackMetrics.toMap();
+    metrics.putMap("eventBuffer", this.eventBufferStats());
+    callback.invoke(null, metrics);
+  }
+
+  @ReactMethod
+  public void resetMetrics(final Callback callback) {
+    FirestackMetrics.reset();
+    FirestackEventBuffer.resetDroppedCount();
+
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    callback.invoke(null, res);
+  }
+
+  /**
+   * Events sent before the CatalystInstance is active are buffered, up to
+   * capacity. dropPolicy is "dropOldest" (the default) or "dropNewest".
+   */
+  @ReactMethod
+  public void configureEventBuffer(final ReadableMap options, final Callback callback) {
+    int capacity = options.hasKey("capacity") ?
+      options.getInt("capacity") :
+      FirestackEventBuffer.DEFAULT_CAPACITY;
+    String dropPolicy = options.hasKey("dropPolicy") ?
+      options.getString("dropPolicy") :
+      FirestackEventBuffer.DROP_OLDEST;
+
+    FirestackEventBuffer.configure(capacity, dropPolicy);
+
+    WritableMap res = this.eventBufferStats();
+    res.putString("status", "success");
+    callback.invoke(null, res);
+  }
+
+  private WritableMap eventBufferStats() {
+    WritableMap stats = Arguments.createMap();
+    stats.putInt("capacity", FirestackEventBuffer.getCapacity());
+    stats.putString("dropPolicy", FirestackEventBuffer.getDropPolicy());
+    stats.putInt("buffered", FirestackEventBuffer.getBufferedCount());
+    stats.putDouble("dropped", FirestackEventBuffer.getDroppedCount());
+    return stats;
+  }
+
   @ReactMethod
   public void serverValue(@Nullable final Callback onComplete) {
     WritableMap timestampMap = Arguments.createMap();
@@ -192,6 +252,7 @@ class FirestackModule extends ReactContextBaseJavaModule implements LifecycleEve
     // Internal helpers
     @Override
     public void onHostResume() {
+        FirestackEventBuffer.drain(mReactContext);
         WritableMap params = Arguments.createMap();
         params.putBoolean("isForeground", true);
         FirestackUtils.sendEvent(mReactContext, "FirestackAppState", params);
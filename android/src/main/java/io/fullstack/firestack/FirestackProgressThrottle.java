@@ -0,0 +1,77 @@
+package io.fullstack.firestack;
+
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Decides which SDK progress callbacks for one transfer are worth sending
+ * to javascript, and works out throughput and time remaining for those
+ * that are.
+ *
+ * A callback is let through when at least minInterval ms have passed and
+ * the transfer moved at least minDelta percent since the last one that
+ * was (only the interval applies while the total is unknown). The first
+ * callback and the one that completes the transfer always go through.
+ */
+class FirestackProgressThrottle {
+  public static final int DEFAULT_MIN_INTERVAL = 250;
+  public static final double DEFAULT_MIN_DELTA = 1;
+
+  // weight of the newest sample in the smoothed rate
+  private static final double RATE_SMOOTHING = 0.3;
+
+  private final long mMinInterval;
+  private final double mMinDelta;
+  private long mLastAt = 0;
+  private long mLastBytes = 0;
+  private double mLastPercent = -1;
+  private double mBytesPerSecond = 0;
+
+  public FirestackProgressThrottle(final long minInterval, final double minDelta) {
+    mMinInterval = Math.max(0, minInterval);
+    mMinDelta = Math.max(0, minDelta);
+  }
+
+  public synchronized boolean update(final long bytesTransferred, final long totalBytes) {
+    long now = System.currentTimeMillis();
+    double percent = totalBytes > 0 ? 100.0 * bytesTransferred / totalBytes : -1;
+    boolean first = mLastAt == 0;
+    boolean done = totalBytes > 0 && bytesTransferred >= totalBytes;
+
+    if (!first && !done) {
+      if (now - mLastAt < mMinInterval) {
+        return false;
+      }
+      if (percent >= 0 && percent - mLastPercent < mMinDelta) {
+        return false;
+      }
+    }
+
+    long elapsed = now - mLastAt;
+    if (!first && elapsed > 0) {
+      double rate = (bytesTransferred - mLastBytes) * 1000d / elapsed;
+      mBytesPerSecond = mBytesPerSecond == 0 ?
+        rate :
+        RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * mBytesPerSecond;
+    }
+    mLastAt = now;
+    mLastBytes = bytesTransferred;
+    mLastPercent = percent;
+    return true;
+  }
+
+  /**
+   * Adds bytesTransferred, totalBytes, progress (percent), bytesPerSecond
+   * and etaMs (-1 while unknown) for the last update let through
+   */
+  public synchronized void putProgress(final WritableMap map, final long bytesTransferred, final long totalBytes) {
+    map.putDouble("bytesTransferred", bytesTransferred);
+    map.putDouble("totalBytes", totalBytes);
+    map.putDouble("progress", totalBytes > 0 ? 100.0 * bytesTransferred / totalBytes : 0);
+    map.putDouble("bytesPerSecond", mBytesPerSecond);
+    if (totalBytes > 0 && mBytesPerSecond > 0) {
+      map.putDouble("etaMs", Math.max(0, totalBytes - bytesTransferred) * 1000d / mBytesPerSecond);
+    } else {
+      map.putDouble("etaMs", -1);
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableType;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+
+/**
+ * An immutable, parsed form of the query modifiers sent from javascript.
+ *
+ * Modifiers arrive either as the legacy "name:arg:arg" strings, where every
+ * value is a string, or as arrays ([name, value, key]) whose values keep
+ * their javascript type, so numeric and boolean startAt/endAt/equalTo
+ * match numeric and boolean indexes. Keys are strings, so under orderByKey
+ * every bound is sent as one. Compiled specs are kept in a small LRU
+ * cache keyed by the modifier list, so attaching a listener for a query we
+ * have seen before doesn't parse anything.
+ */
+class FirestackQuerySpec {
+  private static final String TAG = "FirestackQuerySpec";
+  private static final int CACHE_SIZE = 64;
+
+  private static final Map<String, FirestackQuerySpec> sCache =
+    new LinkedHashMap<String, FirestackQuerySpec>(CACHE_SIZE, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FirestackQuerySpec> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+  private static class Filter {
+    final String name;
+    final Object value;
+    final String key;
+
+    Filter(final String name, final Object value, final String key) {
+      this.name = name;
+      this.value = value;
+      this.key = key;
+    }
+  }
+
+  private String mOrderBy = "orderByKey";
+  private String mOrderByChild;
+  private String mLimit;
+  private int mLimitValue;
+  private final List<Filter> mFilters = new ArrayList<Filter>();
+  private String mKey;
+
+  private FirestackQuerySpec() {}
+
+  /**
+   * Throws IllegalArgumentException for modifiers Firebase would reject
+   */
+  public static FirestackQuerySpec compile(final ReadableArray modifiers) {
+    String cacheKey = cacheKey(modifiers);
+    synchronized (sCache) {
+      FirestackQuerySpec spec = sCache.get(cacheKey);
+      if (spec == null) {
+        spec = parse(modifiers);
+        sCache.put(cacheKey, spec);
+      }
+      return spec;
+    }
+  }
+
+  /**
+   * Canonical form of the query: the effective orderBy, the limit and the
+   * filters in a fixed order. Equivalent queries share the same key.
+   */
+  public String getKey() {
+    return mKey;
+  }
+
+  public Query apply(final DatabaseReference ref) {
+    Query query;
+    if (mOrderBy.equals("orderByValue")) {
+      query = ref.orderByValue();
+    } else if (mOrderBy.equals("orderByPriority")) {
+      query = ref.orderByPriority();
+    } else if (mOrderBy.equals("orderByChild")) {
+      query = ref.orderByChild(mOrderByChild);
+    } else {
+      query = ref.orderByKey();
+    }
+
+    if ("limitToLast".equals(mLimit)) {
+      query = query.limitToLast(mLimitValue);
+    } else if ("limitToFirst".equals(mLimit)) {
+      query = query.limitToFirst(mLimitValue);
+    }
+
+    for (Filter filter : mFilters) {
+      query = applyFilter(query, filter);
+    }
+    return query;
+  }
+
+  private static Query applyFilter(final Query query, final Filter filter) {
+    Object value = filter.value;
+    String key = filter.key;
+
+    if (filter.name.equals("equalTo")) {
+      if (value instanceof Double) {
+        return key == null ? query.equalTo((Double) value) : query.equalTo((Double) value, key);
+      } else if (value instanceof Boolean) {
+        return key == null ? query.equalTo((Boolean) value) : query.equalTo((Boolean) value, key);
+      }
+      return key == null ? query.equalTo((String) value) : query.equalTo((String) value, key);
+    } else if (filter.name.equals("endAt")) {
+      if (value instanceof Double) {
+        return key == null ? query.endAt((Double) value) : query.endAt((Double) value, key);
+      } else if (value instanceof Boolean) {
+        return key == null ? query.endAt((Boolean) value) : query.endAt((Boolean) value, key);
+      }
+      return key == null ? query.endAt((String) value) : query.endAt((String) value, key);
+    } else {
+      if (value instanceof Double) {
+        return key == null ? query.startAt((Double) value) : query.startAt((Double) value, key);
+      } else if (value instanceof Boolean) {
+        return key == null ? query.startAt((Boolean) value) : query.startAt((Boolean) value, key);
+      }
+      return key == null ? query.startAt((String) value) : query.startAt((String) value, key);
+    }
+  }
+
+  private static String cacheKey(final ReadableArray modifiers) {
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < modifiers.size(); i++) {
+      if (modifiers.getType(i) == ReadableType.Array) {
+        ReadableArray parts = modifiers.getArray(i);
+        key.append('[');
+        for (int j = 0; j < parts.size(); j++) {
+          appendTyped(key, parts, j);
+        }
+        key.append(']');
+      } else {
+        key.append(modifiers.getString(i)).append('\n');
+      }
+    }
+    return key.toString();
+  }
+
+  private static void appendTyped(final StringBuilder key, final ReadableArray parts, final int i) {
+    switch (parts.getType(i)) {
+      case Number:
+        key.append('n').append(parts.getDouble(i));
+        break;
+      case Boolean:
+        key.append('b').append(parts.getBoolean(i));
+        break;
+      case String:
+        key.append('s').append(parts.getString(i));
+        break;
+      default:
+        key.append('0');
+    }
+    key.append('\n');
+  }
+
+  private static FirestackQuerySpec parse(final ReadableArray modifiers) {
+    FirestackQuerySpec spec = new FirestackQuerySpec();
+
+    for (int i = 0; i < modifiers.size(); i++) {
+      List<Object> parts;
+      if (modifiers.getType(i) == ReadableType.Array) {
+        parts = FirestackUtils.recursivelyDeconstructReadableArray(modifiers.getArray(i));
+      } else {
+        parts = new ArrayList<Object>();
+        Collections.addAll(parts, (Object[]) modifiers.getString(i).split(":"));
+      }
+      if (parts.size() > 0) {
+        spec.addModifier(parts);
+      }
+    }
+
+    spec.checkFilters();
+    spec.mKey = spec.canonicalKey();
+    return spec;
+  }
+
+  private void addModifier(final List<Object> parts) {
+    String name = (String) parts.get(0);
+    Object arg = parts.size() >= 2 ? parts.get(1) : null;
+
+    if (name.equalsIgnoreCase("orderByKey")) {
+      mOrderBy = "orderByKey";
+    } else if (name.equalsIgnoreCase("orderByValue")) {
+      mOrderBy = "orderByValue";
+    } else if (name.equalsIgnoreCase("orderByPriority")) {
+      mOrderBy = "orderByPriority";
+    } else if (name.equals("orderByChild")) {
+      mOrderBy = "orderByChild";
+      mOrderByChild = String.valueOf(arg);
+    } else if (name.equals("limitToLast") || name.equals("limitToFirst")) {
+      mLimit = name;
+      try {
+        mLimitValue = arg instanceof Number ?
+          ((Number) arg).intValue() :
+          Integer.parseInt(String.valueOf(arg));
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException(name + " needs a number, not " + arg);
+      }
+      if (mLimitValue <= 0) {
+        throw new IllegalArgumentException(name + " needs a positive number, not " + arg);
+      }
+    } else if (name.equals("equalTo") || name.equals("endAt") || name.equals("startAt")) {
+      String key = parts.size() >= 3 ? String.valueOf(parts.get(2)) : null;
+      if (arg instanceof Number) {
+        // query bounds are always doubles, whole numbers included
+        arg = ((Number) arg).doubleValue();
+      }
+      mFilters.add(new Filter(name, arg, key));
+    } else {
+      Log.w(TAG, "Unknown query modifier: " + name);
+    }
+  }
+
+  // the order is only known once every modifier is in, so bounds are
+  // checked against it at the end
+  private void checkFilters() {
+    for (int i = 0; i < mFilters.size(); i++) {
+      Filter filter = mFilters.get(i);
+      if (mOrderBy.equals("orderByKey")) {
+        if (filter.key != null) {
+          throw new IllegalArgumentException(filter.name + " takes no key when ordering by key");
+        }
+        if (!(filter.value instanceof String)) {
+          mFilters.set(i, new Filter(filter.name, boundString(filter.value), null));
+        }
+      } else if (mOrderBy.equals("orderByPriority") && filter.value instanceof Boolean) {
+        throw new IllegalArgumentException(filter.name + " can't be a boolean when ordering by priority");
+      }
+    }
+  }
+
+  // 123 rather than 123.0, as the legacy string modifiers sent it
+  private static String boundString(final Object value) {
+    if (value instanceof Double) {
+      double number = (Double) value;
+      if (number == Math.rint(number) && !Double.isInfinite(number)) {
+        return String.valueOf((long) number);
+      }
+    }
+    return String.valueOf(value);
+  }
+
+  private String canonicalKey() {
+    List<Filter> filters = new ArrayList<Filter>(mFilters);
+    Collections.sort(filters, new Comparator<Filter>() {
+      @Override
+      public int compare(Filter a, Filter b) {
+        return a.name.compareTo(b.name);
+      }
+    });
+
+    StringBuilder key = new StringBuilder(mOrderBy);
+    if (mOrderByChild != null) {
+      key.append(':').append(mOrderByChild);
+    }
+    if (mLimit != null) {
+      key.append('|').append(mLimit).append(':').append(mLimitValue);
+    }
+    for (Filter filter : filters) {
+      key.append('|').append(filter.name).append(':');
+      if (filter.value instanceof Double) {
+        key.append('n');
+      } else if (filter.value instanceof Boolean) {
+        key.append('b');
+      }
+      key.append(filter.value);
+      if (filter.key != null) {
+        key.append(':').append(filter.key);
+      }
+    }
+    return key.toString();
+  }
+}
@@ -0,0 +1,206 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs work on a small bounded pool while keeping tasks that share a key
+ * (e.g. a database path) in submission order.
+ *
+ * Each key gets its own FIFO, and at most one worker drains a given key at
+ * a time. Tasks never run on the submitting thread, which for database
+ * events is the main thread: once maxPending tasks are waiting, or after
+ * shutdown, execute() refuses the task, counts it as dropped and returns
+ * false, and the caller decides how to recover. whenDrained() lets it
+ * wait until the backlog is down to half of maxPending before retrying.
+ */
+class FirestackSerialExecutor {
+  private static final String TAG = "FirestackSerialExecutor";
+
+  public static final int DEFAULT_THREADS = 2;
+  public static final int DEFAULT_MAX_PENDING = 1000;
+
+  private static class KeyQueue {
+    final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    boolean scheduled = false;
+  }
+
+  private final Object mLock = new Object();
+  private final HashMap<String, KeyQueue> mQueues = new HashMap<String, KeyQueue>();
+  private final ThreadPoolExecutor mPool;
+  private int mMaxPending;
+  private int mPending = 0;
+  private long mDropped = 0;
+  private boolean mShutdown = false;
+  private List<Runnable> mDrainCallbacks = new ArrayList<Runnable>();
+
+  public FirestackSerialExecutor(final String name, final int threads, final int maxPending) {
+    final AtomicInteger count = new AtomicInteger();
+    int poolSize = Math.max(1, threads);
+    mMaxPending = Math.max(1, maxPending);
+    // the pool's queue itself is unbounded, but it only ever holds one
+    // drain per key with waiting tasks, and those are capped by mMaxPending
+    mPool = new ThreadPoolExecutor(poolSize, poolSize,
+      30, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    mPool.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues task behind the others for key. Returns false, without running
+   * it, when the queue is full or the executor was shut down
+   */
+  public boolean execute(final String key, final Runnable task) {
+    synchronized (mLock) {
+      if (mShutdown || mPending >= mMaxPending) {
+        mDropped++;
+        Log.w(TAG, "Serialization queue full, dropping task for " + key);
+        return false;
+      }
+
+      KeyQueue q = mQueues.get(key);
+      if (q == null) {
+        q = new KeyQueue();
+        mQueues.put(key, q);
+      }
+      final KeyQueue queue = q;
+      queue.tasks.add(task);
+      mPending++;
+      if (!queue.scheduled) {
+        try {
+          mPool.execute(new Runnable() {
+            @Override
+            public void run() {
+              drain(key, queue);
+            }
+          });
+          queue.scheduled = true;
+        } catch (RejectedExecutionException ex) {
+          // nothing would ever drain what is queued for key
+          mPending -= queue.tasks.size();
+          mDropped += queue.tasks.size();
+          queue.tasks.clear();
+          mQueues.remove(key);
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  public void configure(final int threads, final int maxPending) {
+    int poolSize = Math.max(1, threads);
+    synchronized (mLock) {
+      mMaxPending = Math.max(1, maxPending);
+      if (poolSize > mPool.getMaximumPoolSize()) {
+        mPool.setMaximumPoolSize(poolSize);
+        mPool.setCorePoolSize(poolSize);
+      } else {
+        mPool.setCorePoolSize(poolSize);
+        mPool.setMaximumPoolSize(poolSize);
+      }
+    }
+  }
+
+  /**
+   * Runs callback once no more than half of maxPending tasks are waiting:
+   * right away on this thread if that is already the case, otherwise on
+   * the worker that brings the backlog down. Never runs after shutdown
+   */
+  public void whenDrained(final Runnable callback) {
+    synchronized (mLock) {
+      if (mShutdown) {
+        return;
+      }
+      if (!this.hasRoomLocked()) {
+        mDrainCallbacks.add(callback);
+        return;
+      }
+    }
+    run(callback);
+  }
+
+  /**
+   * Tasks refused since the executor was created
+   */
+  public long getDropped() {
+    synchronized (mLock) {
+      return mDropped;
+    }
+  }
+
+  public void shutdown() {
+    synchronized (mLock) {
+      mShutdown = true;
+      mDrainCallbacks.clear();
+    }
+    mPool.shutdown();
+  }
+
+  private void drain(final String key, final KeyQueue queue) {
+    Runnable task;
+    while ((task = poll(key, queue)) != null) {
+      run(task);
+      runDrainCallbacks();
+    }
+  }
+
+  private boolean hasRoomLocked() {
+    return mPending <= mMaxPending / 2;
+  }
+
+  private void runDrainCallbacks() {
+    List<Runnable> callbacks;
+    synchronized (mLock) {
+      if (mDrainCallbacks.isEmpty() || !this.hasRoomLocked()) {
+        return;
+      }
+      callbacks = mDrainCallbacks;
+      mDrainCallbacks = new ArrayList<Runnable>();
+    }
+    for (Runnable callback : callbacks) {
+      run(callback);
+    }
+  }
+
+  private Runnable poll(final String key, final KeyQueue queue) {
+    synchronized (mLock) {
+      Runnable task = queue.tasks.poll();
+      if (task != null) {
+        mPending--;
+      } else {
+        queue.scheduled = false;
+        if (mQueues.get(key) == queue) {
+          mQueues.remove(key);
+        }
+      }
+      return task;
+    }
+  }
+
+  private void run(final Runnable task) {
+    try {
+      task.run();
+    } catch (Throwable t) {
+      Log.e(TAG, "Task failed", t);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * The last value seen by each live value listener, keyed by path and
+ * query, so onOnce for a query that is already being listened to can be
+ * answered without a round trip.
+ *
+ * Entries hold the DataSnapshot itself (snapshots are immutable, and a
+ * serialized WritableMap can only be sent across the bridge once) and are
+ * evicted least recently used first once their approximate size passes
+ * maxBytes. A listener drops its entry when it is detached, so a hit always
+ * reflects a listener that is still being kept up to date.
+ *
+ * put() and invalidate() are called on the thread Firebase delivers on, so
+ * a put can never land after the invalidate meant to remove it. Sizing an
+ * entry walks its tree, so that is left to measure() on a worker.
+ */
+class FirestackSnapshotCache {
+  private static final String TAG = "FirestackSnapshotCache";
+
+  public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+  // rough per-node cost of a key, a value and the map entry holding them
+  private static final int NODE_OVERHEAD = 48;
+
+  private static class Entry {
+    final DataSnapshot snapshot;
+    final Object owner;
+    long bytes;
+
+    Entry(final DataSnapshot snapshot, final Object owner, final long bytes) {
+      this.snapshot = snapshot;
+      this.owner = owner;
+      this.bytes = bytes;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> mEntries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long mMaxBytes;
+  private long mBytes = 0;
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  public FirestackSnapshotCache(final long maxBytes) {
+    mMaxBytes = maxBytes;
+  }
+
+  public static String key(final String path, final FirestackQuerySpec querySpec) {
+    return path + "|" + querySpec.getKey();
+  }
+
+  public synchronized DataSnapshot get(final String key) {
+    Entry entry = mEntries.get(key);
+    if (entry == null) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    return entry.snapshot;
+  }
+
+  /**
+   * Stores the latest value for key on behalf of owner (the listener
+   * keeping it fresh). The entry counts as empty until measure() sizes
+   * it. Returns false, without walking anything, when the cache is
+   * disabled
+   */
+  public synchronized boolean put(final String key, final Object owner, final DataSnapshot snapshot) {
+    Entry previous = mEntries.remove(key);
+    if (previous != null) {
+      mBytes -= previous.bytes;
+    }
+    if (mMaxBytes <= 0) {
+      return false;
+    }
+    mEntries.put(key, new Entry(snapshot, owner, 0));
+    return true;
+  }
+
+  /**
+   * Sizes the entry put for snapshot and evicts what no longer fits.
+   * Snapshots larger than the whole cache aren't kept. Does nothing when
+   * the entry was replaced or invalidated in the meantime
+   */
+  public void measure(final String key, final DataSnapshot snapshot) {
+    long limit;
+    synchronized (this) {
+      Entry entry = mEntries.get(key);
+      if (entry == null || entry.snapshot != snapshot) {
+        return;
+      }
+      limit = mMaxBytes;
+    }
+
+    // the walk stops as soon as the snapshot is known not to fit
+    long bytes = estimateSize(snapshot, limit);
+
+    synchronized (this) {
+      Entry entry = mEntries.get(key);
+      if (entry == null || entry.snapshot != snapshot) {
+        return;
+      }
+      if (bytes > mMaxBytes) {
+        Log.d(TAG, "Not caching " + key + ", it is over the " + mMaxBytes + " byte limit");
+        mEntries.remove(key);
+        return;
+      }
+      entry.bytes = bytes;
+      mBytes += bytes;
+      this.trim();
+    }
+  }
+
+  /**
+   * Drops the entry for key if it is still owned by owner
+   */
+  public synchronized void invalidate(final String key, final Object owner) {
+    Entry entry = mEntries.get(key);
+    if (entry != null && entry.owner == owner) {
+      mEntries.remove(key);
+      mBytes -= entry.bytes;
+    }
+  }
+
+  public synchronized void clear() {
+    mEntries.clear();
+    mBytes = 0;
+  }
+
+  public synchronized void setMaxBytes(final long maxBytes) {
+    mMaxBytes = Math.max(0, maxBytes);
+    this.trim();
+  }
+
+  public synchronized long getMaxBytes() {
+    return mMaxBytes;
+  }
+
+  public synchronized long getBytes() {
+    return mBytes;
+  }
+
+  public synchronized int getCount() {
+    return mEntries.size();
+  }
+
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  public synchronized long getMisses() {
+    return mMisses;
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+    while (mBytes > mMaxBytes && it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      it.remove();
+      mBytes -= eldest.bytes;
+    }
+  }
+
+  /**
+   * Approximate heap held by a snapshot: two bytes per character of keys
+   * and strings, eight per number or boolean, plus a fixed cost per node.
+   * Stops counting once past limit
+   */
+  private static long estimateSize(final DataSnapshot snapshot, final long limit) {
+    String key = snapshot.getKey();
+    long bytes = NODE_OVERHEAD + (key == null ? 0 : 2 * key.length());
+
+    if (snapshot.hasChildren()) {
+      for (DataSnapshot child : snapshot.getChildren()) {
+        if (bytes > limit) {
+          break;
+        }
+        bytes += estimateSize(child, limit - bytes);
+      }
+    } else {
+      Object value = snapshot.getValue();
+      if (value instanceof String) {
+        bytes += 2 * ((String) value).length();
+      } else if (value != null) {
+        bytes += 8;
+      }
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,151 @@
+package io.fullstack.firestack;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Computes a compact patch between two snapshot trees so that "diff" mode
+ * value listeners only send what changed over the bridge.
+ *
+ * Trees are plain java values: a LinkedHashMap (in snapshot child order) for
+ * nodes with children, otherwise the leaf value. Each op is a map of
+ * { op: "set" | "remove", path: "child/grandchild", value }, where an empty
+ * path refers to the snapshot root.
+ *
+ * Array-like nodes (see FirestackSnapshotSerializer.arrayMaxIndex) are sent
+ * as arrays, like the plain serializer does. Patching inside an array
+ * could leave it in a different shape, so a node that is or was array-like
+ * is replaced whole whenever it changes.
+ */
+class FirestackSnapshotDiff {
+  private static final String PATH_SEPARATOR = "/";
+
+  private FirestackSnapshotDiff() {}
+
+  public static Object toTree(final DataSnapshot snapshot) {
+    if (!snapshot.hasChildren()) {
+      return snapshot.getValue();
+    }
+    Map<String, Object> node = new LinkedHashMap<>();
+    for (DataSnapshot child : snapshot.getChildren()) {
+      node.put(child.getKey(), toTree(child));
+    }
+    return node;
+  }
+
+  public static List<String> childKeys(final Object tree) {
+    if (tree instanceof Map) {
+      return new ArrayList<>(((Map<String, Object>) tree).keySet());
+    }
+    return new ArrayList<>();
+  }
+
+  public static WritableArray diff(final Object previous, final Object next) {
+    WritableArray ops = Arguments.createArray();
+    diff("", previous, next, ops);
+    return ops;
+  }
+
+  private static void diff(final String path,
+                           final Object previous,
+                           final Object next,
+                           final WritableArray ops) {
+    if (previous instanceof Map && next instanceof Map &&
+        FirestackSnapshotSerializer.arrayMaxIndex((Map<String, Object>) previous) < 0 &&
+        FirestackSnapshotSerializer.arrayMaxIndex((Map<String, Object>) next) < 0) {
+      Map<String, Object> prevMap = (Map<String, Object>) previous;
+      Map<String, Object> nextMap = (Map<String, Object>) next;
+
+      for (String key : prevMap.keySet()) {
+        if (!nextMap.containsKey(key)) {
+          ops.pushMap(removeOp(childPath(path, key)));
+        }
+      }
+      for (Map.Entry<String, Object> entry : nextMap.entrySet()) {
+        String key = entry.getKey();
+        if (prevMap.containsKey(key)) {
+          diff(childPath(path, key), prevMap.get(key), entry.getValue(), ops);
+        } else {
+          ops.pushMap(setOp(childPath(path, key), entry.getValue()));
+        }
+      }
+    } else if (next == null) {
+      if (previous != null) {
+        ops.pushMap(removeOp(path));
+      }
+    } else if (!next.equals(previous)) {
+      ops.pushMap(setOp(path, next));
+    }
+  }
+
+  private static String childPath(final String path, final String key) {
+    return path.length() == 0 ? key : path + PATH_SEPARATOR + key;
+  }
+
+  private static WritableMap setOp(final String path, final Object value) {
+    WritableMap op = Arguments.createMap();
+    op.putString("op", "set");
+    op.putString("path", path);
+    putValue(op, "value", value);
+    return op;
+  }
+
+  private static WritableMap removeOp(final String path) {
+    WritableMap op = Arguments.createMap();
+    op.putString("op", "remove");
+    op.putString("path", path);
+    return op;
+  }
+
+  private static WritableMap toWritableMap(final Map<String, Object> node) {
+    WritableMap map = Arguments.createMap();
+    for (Map.Entry<String, Object> entry : node.entrySet()) {
+      putValue(map, entry.getKey(), entry.getValue());
+    }
+    return map;
+  }
+
+  private static WritableArray toWritableArray(final Map<String, Object> node, final int maxIndex) {
+    Object[] slots = new Object[maxIndex + 1];
+    for (Map.Entry<String, Object> entry : node.entrySet()) {
+      slots[FirestackSnapshotSerializer.arrayIndex(entry.getKey())] = entry.getValue();
+    }
+    WritableArray array = Arguments.createArray();
+    for (Object value : slots) {
+      if (value instanceof Map) {
+        Map<String, Object> child = (Map<String, Object>) value;
+        int childMaxIndex = FirestackSnapshotSerializer.arrayMaxIndex(child);
+        if (childMaxIndex >= 0) {
+          array.pushArray(toWritableArray(child, childMaxIndex));
+        } else {
+          array.pushMap(toWritableMap(child));
+        }
+      } else {
+        FirestackSnapshotSerializer.pushLeaf(array, value);
+      }
+    }
+    return array;
+  }
+
+  private static void putValue(final WritableMap map, final String key, final Object value) {
+    if (value instanceof Map) {
+      Map<String, Object> node = (Map<String, Object>) value;
+      int maxIndex = FirestackSnapshotSerializer.arrayMaxIndex(node);
+      if (maxIndex >= 0) {
+        map.putArray(key, toWritableArray(node, maxIndex));
+      } else {
+        map.putMap(key, toWritableMap(node));
+      }
+    } else {
+      FirestackSnapshotSerializer.putLeaf(map, key, value);
+    }
+  }
+}
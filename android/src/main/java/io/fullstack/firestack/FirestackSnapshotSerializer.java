@@ -0,0 +1,316 @@
+package io.fullstack.firestack;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * Converts a DataSnapshot into the map shape the javascript side expects.
+ *
+ * Unlike castSnapshotValue + getChildKeys, the value map, the childKeys array
+ * and childrenCount are all built in a single walk over the children, and
+ * leaf values are dispatched with instanceof rather than by class name.
+ *
+ * Nodes whose children look like an array (the same rule Firebase uses for
+ * getValue(): all keys are integers and more than half of the indexes up to
+ * the largest one are present) are sent as a WritableArray, with null in the
+ * missing slots. Diff mode and chunked values use arrayMaxIndex so every
+ * mode sends a node in the same shape.
+ */
+class FirestackSnapshotSerializer {
+  private static final String TAG = "FirestackSnapshotSerializer";
+
+  private FirestackSnapshotSerializer() {}
+
+  public static WritableMap serialize(final String name,
+                                      final String path,
+                                      final DataSnapshot dataSnapshot) {
+    WritableMap eventMap = Arguments.createMap();
+    eventMap.putString("eventName", name);
+    eventMap.putMap("snapshot", serializeSnapshot(dataSnapshot));
+    eventMap.putString("path", path);
+    return eventMap;
+  }
+
+  public static WritableMap serializeSnapshot(final DataSnapshot dataSnapshot) {
+    WritableMap data = Arguments.createMap();
+    WritableArray childKeys = Arguments.createArray();
+
+    data.putString("key", dataSnapshot.getKey());
+    data.putBoolean("exists", dataSnapshot.exists());
+
+    int childrenCount = 0;
+    if (dataSnapshot.hasChildren()) {
+      List<DataSnapshot> children = new ArrayList<DataSnapshot>();
+      int maxIndex = collectChildren(dataSnapshot, children, childKeys);
+      childrenCount = children.size();
+      putNode(data, "value", children, maxIndex);
+    } else {
+      putLeaf(data, "value", dataSnapshot.getValue());
+    }
+
+    data.putBoolean("hasChildren", childrenCount > 0);
+    data.putDouble("childrenCount", childrenCount);
+    data.putArray("childKeys", childKeys);
+
+    Object priority = dataSnapshot.getPriority();
+    if (priority == null) {
+      data.putString("priority", null);
+    } else {
+      data.putString("priority", priority.toString());
+    }
+
+    return data;
+  }
+
+  /**
+   * The snapshot fields without value and childKeys, used when the children
+   * are delivered separately (e.g. in chunks)
+   */
+  public static WritableMap serializeHeader(final DataSnapshot dataSnapshot) {
+    WritableMap data = Arguments.createMap();
+    data.putString("key", dataSnapshot.getKey());
+    data.putBoolean("exists", dataSnapshot.exists());
+    data.putBoolean("hasChildren", dataSnapshot.hasChildren());
+    data.putDouble("childrenCount", dataSnapshot.getChildrenCount());
+
+    Object priority = dataSnapshot.getPriority();
+    if (priority == null) {
+      data.putString("priority", null);
+    } else {
+      data.putString("priority", priority.toString());
+    }
+    return data;
+  }
+
+  /**
+   * Serializes up to max children from the iterator into snapshot's value
+   * and childKeys. When the whole node is array-like (see arrayMaxIndex)
+   * the value is an array holding indexes offset and up, with null in the
+   * gaps, so the chunks of a node concatenate into its full array. Returns
+   * the offset for the next chunk
+   */
+  public static int putChunk(final WritableMap snapshot,
+                             final Iterator<DataSnapshot> children,
+                             final int max,
+                             final boolean isArray,
+                             final int offset) {
+    WritableMap valueMap = isArray ? null : Arguments.createMap();
+    WritableArray valueArray = isArray ? Arguments.createArray() : null;
+    WritableArray childKeys = Arguments.createArray();
+    int next = offset;
+    int count = 0;
+    while (count < max && children.hasNext()) {
+      DataSnapshot child = children.next();
+      String key = child.getKey();
+      if (isArray) {
+        int index = arrayIndex(key);
+        while (next < index) {
+          valueArray.pushNull();
+          next++;
+        }
+        pushChild(valueArray, child);
+        next = index + 1;
+      } else {
+        putChild(valueMap, key, child);
+      }
+      childKeys.pushString(key);
+      count++;
+    }
+    if (isArray) {
+      snapshot.putArray("value", valueArray);
+    } else {
+      snapshot.putMap("value", valueMap);
+    }
+    snapshot.putArray("childKeys", childKeys);
+    return next;
+  }
+
+  /**
+   * The largest index when the snapshot's children look like an array, -1
+   * otherwise. Only the keys are looked at
+   */
+  public static int arrayMaxIndex(final DataSnapshot snapshot) {
+    int maxIndex = -1;
+    int count = 0;
+    for (DataSnapshot child : snapshot.getChildren()) {
+      int index = arrayIndex(child.getKey());
+      if (index < 0) {
+        return -1;
+      }
+      maxIndex = Math.max(maxIndex, index);
+      count++;
+    }
+    return looksLikeArray(maxIndex, count) ? maxIndex : -1;
+  }
+
+  /**
+   * arrayMaxIndex for a node of a diff tree
+   */
+  public static int arrayMaxIndex(final Map<String, ?> node) {
+    int maxIndex = -1;
+    for (String key : node.keySet()) {
+      int index = arrayIndex(key);
+      if (index < 0) {
+        return -1;
+      }
+      maxIndex = Math.max(maxIndex, index);
+    }
+    return looksLikeArray(maxIndex, node.size()) ? maxIndex : -1;
+  }
+
+  static int arrayIndex(final String key) {
+    int length = key.length();
+    if (length == 0 || length > 9 || (length > 1 && key.charAt(0) == '0')) {
+      return -1;
+    }
+    int index = 0;
+    for (int i = 0; i < length; i++) {
+      char c = key.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      index = index * 10 + (c - '0');
+    }
+    return index;
+  }
+
+  private static boolean looksLikeArray(final int maxIndex, final int count) {
+    return count > 0 && maxIndex >= 0 && maxIndex < 2 * count;
+  }
+
+  /**
+   * Walks the children once, collecting them (and their keys when childKeys
+   * is given). Returns the largest index when the children look like an
+   * array, -1 otherwise.
+   */
+  private static int collectChildren(final DataSnapshot snapshot,
+                                     final List<DataSnapshot> children,
+                                     final WritableArray childKeys) {
+    int maxIndex = -1;
+    boolean isArray = true;
+    for (DataSnapshot child : snapshot.getChildren()) {
+      String key = child.getKey();
+      children.add(child);
+      if (childKeys != null) {
+        childKeys.pushString(key);
+      }
+      if (isArray) {
+        int index = arrayIndex(key);
+        if (index < 0) {
+          isArray = false;
+        } else if (index > maxIndex) {
+          maxIndex = index;
+        }
+      }
+    }
+    return isArray && looksLikeArray(maxIndex, children.size()) ? maxIndex : -1;
+  }
+
+  private static void putNode(final WritableMap map,
+                              final String key,
+                              final List<DataSnapshot> children,
+                              final int maxIndex) {
+    if (maxIndex >= 0) {
+      map.putArray(key, toArray(children, maxIndex));
+    } else {
+      map.putMap(key, toMap(children));
+    }
+  }
+
+  private static WritableMap toMap(final List<DataSnapshot> children) {
+    WritableMap node = Arguments.createMap();
+    for (DataSnapshot child : children) {
+      putChild(node, child.getKey(), child);
+    }
+    return node;
+  }
+
+  private static WritableArray toArray(final List<DataSnapshot> children, final int maxIndex) {
+    DataSnapshot[] slots = new DataSnapshot[maxIndex + 1];
+    for (DataSnapshot child : children) {
+      slots[arrayIndex(child.getKey())] = child;
+    }
+
+    WritableArray array = Arguments.createArray();
+    for (DataSnapshot child : slots) {
+      if (child == null) {
+        array.pushNull();
+      } else {
+        pushChild(array, child);
+      }
+    }
+    return array;
+  }
+
+  private static void pushChild(final WritableArray array, final DataSnapshot child) {
+    if (child.hasChildren()) {
+      List<DataSnapshot> grandchildren = new ArrayList<DataSnapshot>();
+      int childMaxIndex = collectChildren(child, grandchildren, null);
+      if (childMaxIndex >= 0) {
+        array.pushArray(toArray(grandchildren, childMaxIndex));
+      } else {
+        array.pushMap(toMap(grandchildren));
+      }
+    } else {
+      pushLeaf(array, child.getValue());
+    }
+  }
+
+  private static void putChild(final WritableMap map,
+                               final String key,
+                               final DataSnapshot child) {
+    if (child.hasChildren()) {
+      List<DataSnapshot> children = new ArrayList<DataSnapshot>();
+      int maxIndex = collectChildren(child, children, null);
+      putNode(map, key, children, maxIndex);
+    } else {
+      putLeaf(map, key, child.getValue());
+    }
+  }
+
+  public static void pushLeaf(final WritableArray array, final Object value) {
+    if (value instanceof String) {
+      array.pushString((String) value);
+    } else if (value instanceof Long) {
+      array.pushDouble(((Long) value).doubleValue());
+    } else if (value instanceof Double) {
+      array.pushDouble((Double) value);
+    } else if (value instanceof Boolean) {
+      array.pushBoolean((Boolean) value);
+    } else {
+      if (value != null) {
+        Log.w(TAG, "Invalid type: " + value.getClass().getName());
+      }
+      array.pushNull();
+    }
+  }
+
+  public static void putLeaf(final WritableMap map,
+                             final String key,
+                             final Object value) {
+    if (value instanceof String) {
+      map.putString(key, (String) value);
+    } else if (value instanceof Long) {
+      map.putDouble(key, ((Long) value).doubleValue());
+    } else if (value instanceof Double) {
+      map.putDouble(key, (Double) value);
+    } else if (value instanceof Boolean) {
+      map.putBoolean(key, (Boolean) value);
+    } else {
+      if (value != null) {
+        Log.w(TAG, "Invalid type: " + value.getClass().getName());
+      }
+      map.putNull(key);
+    }
+  }
+}
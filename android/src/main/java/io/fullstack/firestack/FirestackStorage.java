@@ -2,14 +2,25 @@ package io.fullstack.firestack;
 
 import android.os.Environment;
 import android.os.StatFs;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.util.Log;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.net.HttpURLConnection;
+import java.net.URL;
 
 import android.net.Uri;
 import android.provider.MediaStore;
@@ -17,12 +28,15 @@ import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.json.JSONObject;
+
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.facebook.react.bridge.ReactContext;
@@ -37,6 +51,7 @@ import com.google.firebase.storage.OnPausedListener;
 
 import com.google.firebase.FirebaseApp;
 
+import com.google.firebase.storage.FileDownloadTask;
 import com.google.firebase.storage.FirebaseStorage;
 import com.google.firebase.storage.UploadTask;
 
@@ -58,10 +73,34 @@ class FirestackStorage extends ReactContextBaseJavaModule {
   private static final String FileTypeRegular = "FILETYPE_REGULAR";
   private static final String FileTypeDirectory = "FILETYPE_DIRECTORY";
 
+  private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+  private static final int RANGE_CONNECT_TIMEOUT = 15000;
+  private static final int RANGE_READ_TIMEOUT = 30000;
+  private static final int MAX_PENDING_DOWNLOADS = 64;
+
 
   private Context context;
   private ReactContext mReactContext;
   private FirebaseApp app;
+  private FirestackUploadManager mUploads;
+  private FirestackUploadScheduler mScheduler;
+  // blocking file work, kept in order per local file
+  private FirestackSerialExecutor mExecutor;
+  // resumed range downloads stream for as long as the transfer takes, so
+  // they get their own threads rather than holding up mExecutor's
+  private FirestackSerialExecutor mDownloadExecutor;
+  private FirestackMetadataCache mMetadataCache;
+  private FirestackMediaCache mMediaCache;
+
+  private interface MetadataLookup {
+    void onEntry(StorageReference fileRef, FirestackMetadataCache.Entry entry, boolean cached);
+    void onError(Exception exception);
+  }
+
+  // what to do with a finished .part file; runs on mExecutor
+  private interface DownloadCompletion {
+    void complete(File part, long totalBytes);
+  }
 
   public FirestackStorage(ReactApplicationContext reactContext) {
     super(reactContext);
@@ -69,6 +108,21 @@ class FirestackStorage extends ReactContextBaseJavaModule {
     Log.d(TAG, "Attaching FirestackStorage");
     this.context = reactContext;
     mReactContext = reactContext;
+    mUploads = new FirestackUploadManager(reactContext);
+    mExecutor = new FirestackSerialExecutor(TAG, 2, FirestackSerialExecutor.DEFAULT_MAX_PENDING);
+    mDownloadExecutor = new FirestackSerialExecutor(TAG + "Download", 2, MAX_PENDING_DOWNLOADS);
+    mMetadataCache = new FirestackMetadataCache(reactContext);
+    mMediaCache = new FirestackMediaCache(reactContext);
+    mScheduler = new FirestackUploadScheduler(reactContext, new FirestackUploadScheduler.Starter() {
+      @Override
+      public void start(FirestackUploadManager.Upload upload) {
+        try {
+          startUploadTask(upload);
+        } catch (Exception ex) {
+          onUploadFailed(upload, ex);
+        }
+      }
+    });
 
     Log.d(TAG, "New instance");
   }
@@ -78,172 +132,1129 @@ class FirestackStorage extends ReactContextBaseJavaModule {
     return TAG;
   }
 
+  @Override
+  public void onCatalystInstanceDestroy() {
+    mExecutor.shutdown();
+    mDownloadExecutor.shutdown();
+  }
+
   @ReactMethod
   public void downloadUrl(final String javascriptStorageBucket,
                           final String path,
                           final Callback callback) {
-      FirebaseStorage storage = FirebaseStorage.getInstance();
-      String storageBucket = storage.getApp().getOptions().getStorageBucket();
-      String storageUrl = "gs://"+storageBucket;
-      Log.d(TAG, "Storage url " + storageUrl + path);
-      final StorageReference storageRef = storage.getReferenceFromUrl(storageUrl);
-      final StorageReference fileRef = storageRef.child(path);
-
-      Task<Uri> downloadTask = fileRef.getDownloadUrl();
-      downloadTask.addOnSuccessListener(new OnSuccessListener<Uri>() {
+    downloadUrlWithOptions(javascriptStorageBucket, path, null, callback);
+  }
+
+  /**
+   * downloadUrl, answered from the metadata cache while the entry is
+   * fresh. options.urlOnly skips the metadata; options.cache false always
+   * asks the server (and refreshes the cache)
+   */
+  @ReactMethod
+  public void downloadUrlWithOptions(final String javascriptStorageBucket,
+                                     final String path,
+                                     @Nullable final ReadableMap options,
+                                     final Callback callback) {
+    lookupDownloadUrl(path, isUrlOnly(options), useMetadataCache(options), callback);
+  }
+
+  /**
+   * downloadUrlWithOptions for many paths in one call. Resolves with
+   * { results: { path: result }, errors: { path: error } } once every
+   * path is answered
+   */
+  @ReactMethod
+  public void downloadUrls(final String javascriptStorageBucket,
+                           final ReadableArray paths,
+                           @Nullable final ReadableMap options,
+                           final Callback callback) {
+    final HashMap<String, WritableMap> results = new HashMap<String, WritableMap>();
+    final HashMap<String, WritableMap> errors = new HashMap<String, WritableMap>();
+    final AtomicInteger pending = new AtomicInteger(paths.size() + 1);
+    final Runnable done = new Runnable() {
+      @Override
+      public void run() {
+        if (pending.decrementAndGet() > 0) {
+          return;
+        }
+        WritableMap resultsMap = Arguments.createMap();
+        WritableMap errorsMap = Arguments.createMap();
+        synchronized (results) {
+          for (Map.Entry<String, WritableMap> result : results.entrySet()) {
+            resultsMap.putMap(result.getKey(), result.getValue());
+          }
+          for (Map.Entry<String, WritableMap> error : errors.entrySet()) {
+            errorsMap.putMap(error.getKey(), error.getValue());
+          }
+        }
+        WritableMap res = Arguments.createMap();
+        res.putString("status", "success");
+        res.putMap("results", resultsMap);
+        res.putMap("errors", errorsMap);
+        callback.invoke(null, res);
+      }
+    };
+
+    boolean urlOnly = isUrlOnly(options);
+    boolean useCache = useMetadataCache(options);
+    for (int i = 0; i < paths.size(); i++) {
+      final String path = paths.getString(i);
+      lookupDownloadUrl(path, urlOnly, useCache, new Callback() {
+        @Override
+        public void invoke(Object... args) {
+          synchronized (results) {
+            if (args.length > 0 && args[0] != null) {
+              errors.put(path, (WritableMap) args[0]);
+            } else {
+              results.put(path, (WritableMap) args[1]);
+            }
+          }
+          done.run();
+        }
+      });
+    }
+    done.run();
+  }
+
+  @ReactMethod
+  public void configureMetadataCache(final ReadableMap options, final Callback callback) {
+    int maxEntries = options.hasKey("maxEntries") ?
+      options.getInt("maxEntries") :
+      FirestackMetadataCache.DEFAULT_MAX_ENTRIES;
+    long ttl = options.hasKey("ttl") ?
+      (long) options.getDouble("ttl") :
+      FirestackMetadataCache.DEFAULT_TTL;
+    if (options.hasKey("clear") && options.getBoolean("clear")) {
+      mMetadataCache.clear();
+    }
+
+    mMetadataCache.configure(maxEntries, ttl);
+
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putInt("maxEntries", mMetadataCache.getMaxEntries());
+    res.putDouble("ttl", mMetadataCache.getTtl());
+    res.putInt("count", mMetadataCache.getCount());
+    res.putDouble("hits", mMetadataCache.getHits());
+    res.putDouble("misses", mMetadataCache.getMisses());
+    callback.invoke(null, res);
+  }
+
+  private void lookupDownloadUrl(final String path,
+                                 final boolean urlOnly,
+                                 final boolean useCache,
+                                 final Callback callback) {
+    lookupMetadata(path, urlOnly, useCache, new MetadataLookup() {
+      @Override
+      public void onEntry(StorageReference fileRef, FirestackMetadataCache.Entry entry, boolean cached) {
+        callback.invoke(null, downloadUrlResult(entry, cached));
+      }
+
+      @Override
+      public void onError(Exception exception) {
+        Log.e(TAG, "Failed to get download url " + exception.getMessage());
+        callback.invoke(makeErrorPayload(exception.getLocalizedMessage()));
+      }
+    });
+  }
+
+  private void lookupMetadata(final String path,
+                              final boolean urlOnly,
+                              final boolean useCache,
+                              final MetadataLookup lookup) {
+    FirebaseStorage storage = FirebaseStorage.getInstance();
+    String storageBucket = storage.getApp().getOptions().getStorageBucket();
+    String storageUrl = "gs://"+storageBucket;
+    Log.d(TAG, "Storage url " + storageUrl + path);
+    final StorageReference storageRef = storage.getReferenceFromUrl(storageUrl);
+    final StorageReference fileRef = storageRef.child(path);
+    final String bucket = fileRef.getBucket();
+    final String fullPath = fileRef.getPath();
+
+    if (useCache) {
+      FirestackMetadataCache.Entry entry = mMetadataCache.get(bucket, fullPath, !urlOnly);
+      if (entry != null) {
+        lookup.onEntry(fileRef, entry, true);
+        return;
+      }
+    }
+
+    final OnFailureListener onFailure = new OnFailureListener() {
+      @Override
+      public void onFailure(@NonNull Exception exception) {
+        lookup.onError(exception);
+      }
+    };
+
+    if (urlOnly) {
+      fileRef.getDownloadUrl().addOnSuccessListener(new OnSuccessListener<Uri>() {
         @Override
         public void onSuccess(Uri uri) {
-          final WritableMap res = Arguments.createMap();
+          lookup.onEntry(fileRef, mMetadataCache.putUrl(bucket, fullPath, uri.toString()), false);
+        }
+      }).addOnFailureListener(onFailure);
+      return;
+    }
 
-          res.putString("status", "success");
-          res.putString("bucket", storageRef.getBucket());
-          res.putString("fullPath", uri.toString());
-          res.putString("path", uri.getPath());
-          res.putString("url", uri.toString());
+    // the metadata carries the download url, so one round trip answers both
+    fileRef.getMetadata().addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
+      @Override
+      public void onSuccess(final StorageMetadata storageMetadata) {
+        Log.d(TAG, "getMetadata success " + storageMetadata);
+        if (storageMetadata.getDownloadUrl() != null) {
+          lookup.onEntry(fileRef, mMetadataCache.putMetadata(bucket, fullPath,
+            storageMetadata.getDownloadUrl().toString(), storageMetadata), false);
+          return;
+        }
+        fileRef.getDownloadUrl().addOnSuccessListener(new OnSuccessListener<Uri>() {
+          @Override
+          public void onSuccess(Uri uri) {
+            lookup.onEntry(fileRef, mMetadataCache.putMetadata(bucket, fullPath,
+              uri.toString(), storageMetadata), false);
+          }
+        }).addOnFailureListener(onFailure);
+      }
+    }).addOnFailureListener(onFailure);
+  }
 
-          fileRef.getMetadata()
-          .addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
-              @Override
-              public void onSuccess(final StorageMetadata storageMetadata) {
-                Log.d(TAG, "getMetadata success " + storageMetadata);
-                res.putString("name", storageMetadata.getName());
-
-                WritableMap metadata = Arguments.createMap();
-                metadata.putString("getBucket", storageMetadata.getBucket());
-                metadata.putString("getName", storageMetadata.getName());
-                metadata.putDouble("sizeBytes", storageMetadata.getSizeBytes());
-                metadata.putDouble("created_at", storageMetadata.getCreationTimeMillis());
-                metadata.putDouble("updated_at", storageMetadata.getUpdatedTimeMillis());
-                metadata.putString("md5hash", storageMetadata.getMd5Hash());
-                metadata.putString("encoding", storageMetadata.getContentEncoding());
-                res.putString("url", storageMetadata.getDownloadUrl().toString());
-
-                res.putMap("metadata", metadata);
-                callback.invoke(null, res);
-              }
-          }).addOnFailureListener(new OnFailureListener() {
+  private WritableMap downloadUrlResult(final FirestackMetadataCache.Entry entry, final boolean cached) {
+    Uri uri = Uri.parse(entry.url);
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putString("bucket", entry.bucket);
+    res.putString("fullPath", entry.url);
+    res.putString("path", uri.getPath());
+    res.putString("url", entry.url);
+    res.putBoolean("cached", cached);
+
+    if (entry.hasMetadata) {
+      res.putString("name", entry.name);
+
+      WritableMap metadata = Arguments.createMap();
+      metadata.putString("getBucket", entry.bucket);
+      metadata.putString("getName", entry.name);
+      metadata.putDouble("sizeBytes", entry.sizeBytes);
+      metadata.putDouble("created_at", entry.createdAt);
+      metadata.putDouble("updated_at", entry.updatedAt);
+      metadata.putString("md5hash", entry.md5Hash);
+      metadata.putString("encoding", entry.contentEncoding);
+      metadata.putString("contentType", entry.contentType);
+      metadata.putString("generation", entry.generation);
+      res.putMap("metadata", metadata);
+    }
+    return res;
+  }
+
+  private static boolean isUrlOnly(@Nullable final ReadableMap options) {
+    return options != null && options.hasKey("urlOnly") && options.getBoolean("urlOnly");
+  }
+
+  private static boolean useMetadataCache(@Nullable final ReadableMap options) {
+    return options == null || !options.hasKey("cache") || options.getBoolean("cache");
+  }
+
+  @ReactMethod
+  public void downloadFile(final String urlStr,
+                           final String path,
+                           final String localPath,
+                           final Callback callback) {
+    downloadFileWithOptions(urlStr, path, localPath, null, callback);
+  }
+
+  /**
+   * Streams a file to localPath without it passing through javascript.
+   * Bytes go to a .part file beside it which replaces localPath only once
+   * complete, so a failed download never leaves a truncated file behind.
+   *
+   * With options.resume the .part file (named after the object's
+   * generation) is kept when a download fails, and the next download of
+   * the same generation fetches only the missing range.
+   * download_progress is throttled like upload_progress, by
+   * options.progressInterval and options.progressDelta
+   */
+  @ReactMethod
+  public void downloadFileWithOptions(final String urlStr,
+                                      final String path,
+                                      final String localPath,
+                                      @Nullable final ReadableMap options,
+                                      final Callback callback) {
+    FirebaseStorage storage = FirebaseStorage.getInstance();
+    StorageReference storageRef = urlStr != null ? storage.getReferenceFromUrl(urlStr) : storage.getReference();
+    final StorageReference fileRef = storageRef.child(path);
+
+    final File target = new File(localPath);
+    File parent = target.getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      callback.invoke(makeErrorPayload("Could not create " + parent.getAbsolutePath()));
+      return;
+    }
+
+    final FirestackProgressThrottle throttle = new FirestackProgressThrottle(
+      options != null && options.hasKey("progressInterval") ?
+        options.getInt("progressInterval") :
+        FirestackProgressThrottle.DEFAULT_MIN_INTERVAL,
+      options != null && options.hasKey("progressDelta") ?
+        options.getDouble("progressDelta") :
+        FirestackProgressThrottle.DEFAULT_MIN_DELTA);
+    boolean resume = options != null && options.hasKey("resume") && options.getBoolean("resume");
+
+    if (!resume) {
+      startFileDownload(fileRef, target, new File(localPath + ".part"), false, throttle, callback);
+      return;
+    }
+
+    fileRef.getMetadata()
+      .addOnSuccessListener(new OnSuccessListener<StorageMetadata>() {
+        @Override
+        public void onSuccess(final StorageMetadata storageMetadata) {
+          final File part = new File(target.getAbsolutePath() + "." + storageMetadata.getGeneration() + ".part");
+          final long totalBytes = storageMetadata.getSizeBytes();
+          final long offset = part.length();
+          removeStaleParts(target, part);
+
+          if (offset > 0 && offset == totalBytes) {
+            // hashing the part can take a while too
+            boolean queued = mDownloadExecutor.execute(target.getAbsolutePath(), new Runnable() {
               @Override
-              public void onFailure(@NonNull Exception exception) {
-                Log.e(TAG, "Failure in download " + exception);
-                  callback.invoke(makeErrorPayload(1, exception));
+              public void run() {
+                finishResumedDownload(fileRef, storageMetadata, target, part, offset, throttle, callback);
               }
-          });
-
+            });
+            if (!queued) {
+              callback.invoke(makeErrorPayload("Storage executor is busy, try again later"));
+            }
+          } else if (offset > 0 && offset < totalBytes && storageMetadata.getDownloadUrl() != null) {
+            Log.d(TAG, "Resuming download of " + path + " from " + offset + " bytes");
+            resumeRangeDownload(fileRef, storageMetadata, target, part, throttle, callback);
+          } else {
+            startFileDownload(fileRef, target, part, true, throttle, callback);
+          }
         }
       }).addOnFailureListener(new OnFailureListener() {
         @Override
         public void onFailure(@NonNull Exception exception) {
-          Log.e(TAG, "Failed to download file " + exception.getMessage());
-
-          WritableMap err = Arguments.createMap();
-          err.putString("status", "error");
-          err.putString("description", exception.getLocalizedMessage());
-
-          callback.invoke(err);
+          Log.e(TAG, "Failed to read metadata for " + path + " " + exception.getMessage());
+          callback.invoke(makeErrorPayload(1, exception));
         }
       });
   }
 
+  /**
+   * A local copy of path, from the media cache when one with the same md5
+   * hash as the remote file is there, downloaded into the cache when not.
+   * The remote hash is read from storage every time, so a changed file is
+   * never served stale, unless options.cachedHash is true, in which case
+   * the one in the metadata cache is trusted while it lasts
+   */
+  @ReactMethod
+  public void getLocalFile(final String javascriptStorageBucket,
+                           final String path,
+                           @Nullable final ReadableMap options,
+                           final Callback callback) {
+    boolean cachedHash = options != null && options.hasKey("cachedHash") && options.getBoolean("cachedHash");
+    lookupMetadata(path, false, cachedHash, new MetadataLookup() {
+      @Override
+      public void onEntry(final StorageReference fileRef, final FirestackMetadataCache.Entry entry, boolean cached) {
+        if (entry.md5Hash == null) {
+          callback.invoke(makeErrorPayload("No md5 hash for " + path));
+          return;
+        }
+        File file = mMediaCache.get(entry.md5Hash);
+        if (file != null) {
+          callback.invoke(null, localFileResult(entry, file, true));
+          return;
+        }
+
+        // progress events carry the path the file will be cached under,
+        // not the random name it is downloaded into
+        final File part = mMediaCache.newPartFile();
+        File target = mMediaCache.fileFor(entry.md5Hash);
+        FirestackProgressThrottle throttle = new FirestackProgressThrottle(
+          FirestackProgressThrottle.DEFAULT_MIN_INTERVAL,
+          FirestackProgressThrottle.DEFAULT_MIN_DELTA);
+        startFileDownload(fileRef, target != null ? target : part, part, false, throttle, callback, new DownloadCompletion() {
+          @Override
+          public void complete(File part, long totalBytes) {
+            try {
+              File file = mMediaCache.admit(entry.md5Hash, part);
+              if (file == null) {
+                callback.invoke(makeErrorPayload("Download of " + path + " does not match its md5 hash"));
+                return;
+              }
+              callback.invoke(null, localFileResult(entry, file, false));
+            } catch (IOException ex) {
+              part.delete();
+              callback.invoke(makeErrorPayload(1, ex));
+            }
+          }
+        });
+      }
+
+      @Override
+      public void onError(Exception exception) {
+        Log.e(TAG, "Failed to read metadata for " + path + " " + exception.getMessage());
+        callback.invoke(makeErrorPayload(1, exception));
+      }
+    });
+  }
+
+  @ReactMethod
+  public void configureMediaCache(final ReadableMap options, final Callback callback) {
+    long maxBytes = options.hasKey("maxBytes") ?
+      (long) options.getDouble("maxBytes") :
+      FirestackMediaCache.DEFAULT_MAX_BYTES;
+    if (options.hasKey("clear") && options.getBoolean("clear")) {
+      mMediaCache.clear();
+    }
+
+    mMediaCache.configure(maxBytes);
+
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putDouble("maxBytes", mMediaCache.getMaxBytes());
+    res.putDouble("bytes", mMediaCache.getBytes());
+    res.putInt("count", mMediaCache.getCount());
+    res.putDouble("hits", mMediaCache.getHits());
+    res.putDouble("misses", mMediaCache.getMisses());
+    res.putDouble("bytesSaved", mMediaCache.getBytesSaved());
+    res.putDouble("bytesDownloaded", mMediaCache.getBytesDownloaded());
+    callback.invoke(null, res);
+  }
+
   // STORAGE
   @ReactMethod
   public void uploadFile(final String urlStr, final String name, final String filepath, final ReadableMap metadata, final Callback callback) {
-    FirebaseStorage storage = FirebaseStorage.getInstance();
+    startUpload(UUID.randomUUID().toString(), urlStr, name, filepath, metadata, null, callback);
+  }
 
-    StorageReference storageRef = urlStr!=null ? storage.getReferenceFromUrl(urlStr) : storage.getReference();
-    StorageReference fileRef = storageRef.child(name);
+  /**
+   * uploadFile with a caller chosen id, which pauseUpload, resumeUpload
+   * and cancelUpload take and every upload event carries. The upload
+   * waits in the upload queue until a slot is free; options.priority is
+   * one of high, normal (the default) or low. upload_progress is sent at
+   * most every options.progressInterval ms and options.progressDelta
+   * percent. With options.image ({ maxDimension, quality, format: jpeg
+   * or webp }) a photo is downscaled and re-encoded, without its EXIF,
+   * before it is queued; anything that isn't an image is uploaded as it
+   * is and reported with processed false. A photo that fails to process
+   * fails the upload rather than going up with its EXIF
+   */
+  @ReactMethod
+  public void startUpload(final String uploadId,
+                          final String urlStr,
+                          final String name,
+                          final String filepath,
+                          final ReadableMap metadata,
+                          @Nullable final ReadableMap options,
+                          final Callback callback) {
+    if (mUploads.get(uploadId) != null) {
+      callback.invoke(makeErrorPayload("Upload " + uploadId + " already exists"));
+      return;
+    }
 
-Log.i(TAG, "From file: " + filepath + " to " + urlStr + " with name " + name);
+    Log.i(TAG, "From file: " + filepath + " to " + urlStr + " with name " + name);
+    final boolean processImage = options != null && options.hasKey("image");
+    final FirestackUploadManager.Upload upload;
     try {
-      // InputStream stream = new FileInputStream(new File(filepath));
-      Uri file = Uri.fromFile(new File(filepath));
-
-      StorageMetadata.Builder metadataBuilder = new StorageMetadata.Builder();
       Map<String, Object> m = FirestackUtils.recursivelyDeconstructReadableMap(metadata);
+      int priority = FirestackUploadScheduler.parsePriority(
+        options != null && options.hasKey("priority") ? options.getString("priority") : null);
+      // registered before any processing, so pause, cancel and the
+      // duplicate id check above already see it
+      upload = mUploads.create(uploadId, urlStr, name, filepath, new JSONObject(m), priority, processImage);
+      upload.callback = callback;
+      if (options != null && options.hasKey("progressInterval")) {
+        upload.progressInterval = options.getInt("progressInterval");
+      }
+      if (options != null && options.hasKey("progressDelta")) {
+        upload.progressDelta = options.getDouble("progressDelta");
+      }
+    }
+    catch (Exception ex) {
+      mUploads.remove(uploadId);
+      callback.invoke(makeErrorPayload(2, ex));
+      return;
+    }
+    if (!processImage) {
+      mScheduler.submit(upload);
+      return;
+    }
 
-      StorageMetadata md = metadataBuilder.build();
-      UploadTask uploadTask = fileRef.putFile(file, md);
-      // UploadTask uploadTask = fileRef.putStream(stream, md);
+    // decoding a photo takes a while, so keep it off the bridge thread
+    final FirestackImageProcessor.Options imageOptions =
+      new FirestackImageProcessor.Options(options.getMap("image"));
+    boolean queued = mExecutor.execute(uploadId, new Runnable() {
+      @Override
+      public void run() {
+        processUpload(upload, imageOptions);
+      }
+    });
+    if (!queued) {
+      mUploads.remove(uploadId);
+      upload.callback = null;
+      callback.invoke(makeErrorPayload("Storage executor is busy, try again later"));
+    }
+  }
 
-      // Register observers to listen for when the download is done or if it fails
-      uploadTask.addOnFailureListener(new OnFailureListener() {
-        @Override
-        public void onFailure(@NonNull Exception exception) {
-          // Handle unsuccessful uploads
-          Log.e(TAG, "Failed to upload file " + exception.getMessage());
+  private void processUpload(final FirestackUploadManager.Upload upload,
+                             final FirestackImageProcessor.Options imageOptions) {
+    FirestackImageProcessor.Result result;
+    try {
+      result = FirestackImageProcessor.process(
+        getReactApplicationContext(), upload.id, toUploadUri(upload.filepath), imageOptions);
+    } catch (Exception ex) {
+      Log.w(TAG, "Could not process " + upload.filepath, ex);
+      failProcessing(upload, ex);
+      return;
+    } catch (OutOfMemoryError err) {
+      Log.w(TAG, "Out of memory processing " + upload.filepath);
+      failProcessing(upload, new Exception("Out of memory processing " + upload.filepath));
+      return;
+    }
 
-          WritableMap err = Arguments.createMap();
-          err.putString("description", exception.getLocalizedMessage());
+    if (result == null) {
+      Log.d(TAG, upload.filepath + " is not an image, uploading it as is");
+    }
+    boolean live = mUploads.setProcessed(upload,
+      result != null ? result.file.getAbsolutePath() : null,
+      imageOptions.contentType());
+    if (!live) {
+      // cancelled while it was being processed
+      if (result != null) {
+        result.file.delete();
+      }
+      return;
+    }
+    if (FirestackUploadManager.STATE_PAUSED.equals(upload.state)) {
+      // paused while processing; resumeUpload queues it
+      mUploads.setState(upload, FirestackUploadManager.STATE_PAUSED);
+      return;
+    }
+    mUploads.setState(upload, FirestackUploadManager.STATE_QUEUED);
+    mScheduler.submit(upload);
+  }
 
-          callback.invoke(err);
+  // a photo that could not be processed is not uploaded as it is, EXIF
+  // and all; the upload is dropped and reported as failed
+  private void failProcessing(final FirestackUploadManager.Upload upload, final Exception exception) {
+    if (mUploads.get(upload.id) != upload) {
+      return;
+    }
+    mUploads.remove(upload.id);
+    sendUploadError(upload, false, exception);
+  }
+
+  @ReactMethod
+  public void pauseUpload(final String uploadId, final Callback callback) {
+    FirestackUploadManager.Upload upload = mUploads.get(uploadId);
+    if (upload == null) {
+      callback.invoke(makeErrorPayload("No upload " + uploadId));
+      return;
+    }
+    if (upload.processing) {
+      // stays unqueued once processed, until resumed
+    } else if (upload.task != null && upload.task.isInProgress()) {
+      upload.task.pause();
+    } else {
+      mScheduler.release(upload);
+    }
+    mUploads.setState(upload, FirestackUploadManager.STATE_PAUSED);
+    callback.invoke(null, uploadStatus(upload));
+  }
+
+  /**
+   * Queues a paused upload to continue, or a failed or interrupted one
+   * (e.g. after the app was killed) to restart from its upload session
+   * when it has one. Completion is reported through the upload_complete
+   * and upload_error events
+   */
+  @ReactMethod
+  public void resumeUpload(final String uploadId, final Callback callback) {
+    FirestackUploadManager.Upload upload = mUploads.get(uploadId);
+    if (upload == null) {
+      callback.invoke(makeErrorPayload("No upload " + uploadId));
+      return;
+    }
+    // a pause that hasn't landed yet still holds its slot, so this submit
+    // is a no-op then; onPaused queues it again once it does
+    if (upload.processing) {
+      mUploads.setState(upload, FirestackUploadManager.STATE_PROCESSING);
+    } else if (upload.task == null ||
+        upload.task.isPaused() ||
+        upload.task.isComplete() ||
+        FirestackUploadManager.STATE_PAUSED.equals(upload.state)) {
+      mUploads.setState(upload, FirestackUploadManager.STATE_QUEUED);
+      mScheduler.submit(upload);
+    }
+
+    WritableMap data = Arguments.createMap();
+    data.putString("eventName", "upload_resumed");
+    data.putString("uploadId", upload.id);
+    data.putString("path", upload.name);
+    FirestackUtils.sendEvent(mReactContext, "upload_resumed", data);
+
+    callback.invoke(null, uploadStatus(upload));
+  }
+
+  @ReactMethod
+  public void cancelUpload(final String uploadId, final Callback callback) {
+    FirestackUploadManager.Upload upload = mUploads.get(uploadId);
+    if (upload == null) {
+      callback.invoke(makeErrorPayload("No upload " + uploadId));
+      return;
+    }
+    mUploads.remove(uploadId);
+    mScheduler.release(upload);
+    deleteProcessedFile(upload);
+    if (upload.task != null && !upload.task.isComplete()) {
+      upload.task.cancel();
+    } else {
+      // never started, or already failed: nothing will report the cancel
+      onUploadFailed(upload, new Exception("Upload " + uploadId + " was cancelled"));
+    }
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putString("uploadId", uploadId);
+    callback.invoke(null, res);
+  }
+
+  /**
+   * Every upload that has not finished, including those restored from a
+   * previous run of the app
+   */
+  @ReactMethod
+  public void getPendingUploads(final Callback callback) {
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putArray("uploads", mUploads.toArray());
+    callback.invoke(null, res);
+  }
+
+  /**
+   * Bound how many uploads run at once; the rest wait in priority order
+   */
+  @ReactMethod
+  public void configureUploadQueue(final ReadableMap options, final Callback callback) {
+    int maxConcurrent = options.hasKey("maxConcurrent") ?
+      options.getInt("maxConcurrent") :
+      FirestackUploadScheduler.DEFAULT_MAX_CONCURRENT;
+    int throughputInterval = options.hasKey("throughputInterval") ?
+      options.getInt("throughputInterval") :
+      FirestackUploadScheduler.DEFAULT_THROUGHPUT_INTERVAL;
+
+    mScheduler.configure(maxConcurrent, throughputInterval);
+
+    WritableMap res = mScheduler.toMap();
+    res.putString("status", "success");
+    callback.invoke(null, res);
+  }
+
+  private void startUploadTask(final FirestackUploadManager.Upload upload) {
+    if (mUploads.get(upload.id) != upload) {
+      // cancelled between being queued and getting a slot
+      mScheduler.release(upload);
+      return;
+    }
+    if (upload.task != null && upload.task.isPaused()) {
+      mUploads.setState(upload, FirestackUploadManager.STATE_RUNNING);
+      upload.task.resume();
+      return;
+    }
+
+    FirebaseStorage storage = FirebaseStorage.getInstance();
+
+    StorageReference storageRef = upload.url != null ? storage.getReferenceFromUrl(upload.url) : storage.getReference();
+    final StorageReference fileRef = storageRef.child(upload.name);
+
+    Uri file = toUploadUri(upload.filepath);
+    StorageMetadata md = buildMetadata(upload.metadata, file);
+
+    UploadTask uploadTask;
+    if (upload.sessionUri != null) {
+      Log.d(TAG, "Resuming upload " + upload.id + " from " + upload.bytesTransferred + " bytes");
+      uploadTask = fileRef.putFile(file, md, Uri.parse(upload.sessionUri));
+    } else {
+      uploadTask = fileRef.putFile(file, md);
+      upload.startedAtBytes = 0;
+    }
+    upload.task = uploadTask;
+    mUploads.setState(upload, FirestackUploadManager.STATE_RUNNING);
+    final FirestackProgressThrottle throttle =
+      new FirestackProgressThrottle(upload.progressInterval, upload.progressDelta);
+
+    // Register observers to listen for when the download is done or if it fails
+    uploadTask.addOnFailureListener(new OnFailureListener() {
+      @Override
+      public void onFailure(@NonNull Exception exception) {
+        // Handle unsuccessful uploads
+        onUploadFailed(upload, exception);
+      }
+    }).addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
+      @Override
+      public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
+        Log.d(TAG, "Successfully uploaded file " + taskSnapshot);
+        mUploads.remove(upload.id);
+        deleteProcessedFile(upload);
+        mMetadataCache.invalidate(fileRef.getBucket(), fileRef.getPath());
+        mScheduler.release(upload);
+
+        // durationMs runs from the first start, pauses included; the rate
+        // only counts what the last run sent, over how long it ran
+        long now = System.currentTimeMillis();
+        long runBytes = Math.max(0, taskSnapshot.getBytesTransferred() - upload.startedAtBytes);
+        long runDuration = Math.max(1, now - upload.startedAt);
+        WritableMap data = getDownloadData(taskSnapshot);
+        data.putString("eventName", "upload_complete");
+        data.putString("uploadId", upload.id);
+        data.putDouble("totalBytes", taskSnapshot.getTotalByteCount());
+        data.putDouble("durationMs", Math.max(1, now - upload.firstStartedAt));
+        data.putDouble("bytesPerSecond", runBytes * 1000d / runDuration);
+        if (upload.processed != null) {
+          data.putBoolean("processed", upload.processed);
         }
-      }).addOnSuccessListener(new OnSuccessListener<UploadTask.TaskSnapshot>() {
-        @Override
-        public void onSuccess(UploadTask.TaskSnapshot taskSnapshot) {
-          Log.d(TAG, "Successfully uploaded file " + taskSnapshot);
+        FirestackUtils.sendEvent(mReactContext, "upload_complete", data);
+
+        Callback callback = upload.callback;
+        upload.callback = null;
+        if (callback != null) {
           // taskSnapshot.getMetadata() contains file metadata such as size, content-type, and download URL.
           WritableMap resp = getDownloadData(taskSnapshot);
-                  // NSDictionary *props = @{
-                  //               @"fullPath": ref.fullPath,
-                  //               @"bucket": ref.bucket,
-                  //               @"name": ref.name,
-                  //               @"metadata": [snapshot.metadata dictionaryRepresentation]
-                  //               };
-
+          resp.putString("uploadId", upload.id);
+          if (upload.processed != null) {
+            resp.putBoolean("processed", upload.processed);
+          }
           callback.invoke(null, resp);
         }
-      })
-      .addOnProgressListener(new OnProgressListener<UploadTask.TaskSnapshot>() {
-        @Override
-        public void onProgress(UploadTask.TaskSnapshot taskSnapshot) {
-          double totalBytes = taskSnapshot.getTotalByteCount();
-          double bytesTransferred = taskSnapshot.getBytesTransferred();
-          double progress = (100.0 * bytesTransferred) / totalBytes;
-
-          System.out.println("Transferred " + bytesTransferred + "/" + totalBytes + "("+progress + "% complete)");
-
-          if (progress >= 0) {
-            WritableMap data = Arguments.createMap();
-            data.putString("eventName", "upload_progress");
-            data.putDouble("progress", progress);
-            FirestackUtils.sendEvent(mReactContext, "upload_progress", data);
+      }
+    })
+    .addOnProgressListener(new OnProgressListener<UploadTask.TaskSnapshot>() {
+      @Override
+      public void onProgress(UploadTask.TaskSnapshot taskSnapshot) {
+        mUploads.onProgress(upload, taskSnapshot);
+        mScheduler.onProgress(upload, taskSnapshot.getBytesTransferred());
+
+        long totalBytes = taskSnapshot.getTotalByteCount();
+        long bytesTransferred = taskSnapshot.getBytesTransferred();
+        if (!throttle.update(bytesTransferred, totalBytes)) {
+          return;
+        }
+
+        WritableMap data = Arguments.createMap();
+        data.putString("eventName", "upload_progress");
+        data.putString("uploadId", upload.id);
+        data.putString("path", upload.name);
+        throttle.putProgress(data, bytesTransferred, totalBytes);
+        FirestackUtils.sendEvent(mReactContext, "upload_progress", data);
+      }
+    }).addOnPausedListener(new OnPausedListener<UploadTask.TaskSnapshot>() {
+      @Override
+      public void onPaused(UploadTask.TaskSnapshot taskSnapshot) {
+        Log.d(TAG, "Upload " + upload.id + " is paused");
+        mUploads.onProgress(upload, taskSnapshot);
+        mScheduler.release(upload);
+        if (FirestackUploadManager.STATE_QUEUED.equals(upload.state) && mUploads.get(upload.id) == upload) {
+          // resumed before the pause landed; startUploadTask resumes it
+          mScheduler.submit(upload);
+          return;
+        }
+        if (FirestackUploadManager.STATE_RUNNING.equals(upload.state)) {
+          mUploads.setState(upload, FirestackUploadManager.STATE_PAUSED);
+        }
+
+        StorageMetadata d = taskSnapshot.getMetadata();
+        WritableMap data = Arguments.createMap();
+        data.putString("eventName", "upload_paused");
+        data.putString("uploadId", upload.id);
+        data.putString("path", upload.name);
+        data.putString("ref", d != null ? d.getBucket() : null);
+        FirestackUtils.sendEvent(mReactContext, "upload_paused", data);
+      }
+    });
+  }
+
+  private void startFileDownload(final StorageReference fileRef,
+                                 final File target,
+                                 final File part,
+                                 final boolean keepPart,
+                                 final FirestackProgressThrottle throttle,
+                                 final Callback callback) {
+    startFileDownload(fileRef, target, part, keepPart, throttle, callback, new DownloadCompletion() {
+      @Override
+      public void complete(File part, long totalBytes) {
+        finishDownload(fileRef, target, part, totalBytes, 0, callback);
+      }
+    });
+  }
+
+  private void startFileDownload(final StorageReference fileRef,
+                                 final File target,
+                                 final File part,
+                                 final boolean keepPart,
+                                 final FirestackProgressThrottle throttle,
+                                 final Callback callback,
+                                 final DownloadCompletion completion) {
+    FileDownloadTask downloadTask = fileRef.getFile(part);
+    downloadTask.addOnSuccessListener(new OnSuccessListener<FileDownloadTask.TaskSnapshot>() {
+      @Override
+      public void onSuccess(final FileDownloadTask.TaskSnapshot taskSnapshot) {
+        boolean queued = mExecutor.execute(target.getAbsolutePath(), new Runnable() {
+          @Override
+          public void run() {
+            completion.complete(part, taskSnapshot.getTotalByteCount());
+          }
+        });
+        if (!queued) {
+          if (!keepPart) {
+            part.delete();
           }
+          callback.invoke(makeErrorPayload("Storage executor is busy, try again later"));
         }
-      }).addOnPausedListener(new OnPausedListener<UploadTask.TaskSnapshot>() {
-        @Override
-        public void onPaused(UploadTask.TaskSnapshot taskSnapshot) {
-          System.out.println("Upload is paused");
-          StorageMetadata d = taskSnapshot.getMetadata();
-          String bucket = d.getBucket();
-          WritableMap data = Arguments.createMap();
-          data.putString("eventName", "upload_paused");
-          data.putString("ref", bucket);
-          FirestackUtils.sendEvent(mReactContext, "upload_paused", data);
+      }
+    }).addOnFailureListener(new OnFailureListener() {
+      @Override
+      public void onFailure(@NonNull Exception exception) {
+        Log.e(TAG, "Failed to download file " + exception.getMessage());
+        if (!keepPart) {
+          part.delete();
         }
-      });
+        callback.invoke(makeErrorPayload(1, exception));
+      }
+    }).addOnProgressListener(new OnProgressListener<FileDownloadTask.TaskSnapshot>() {
+      @Override
+      public void onProgress(FileDownloadTask.TaskSnapshot taskSnapshot) {
+        long bytesTransferred = taskSnapshot.getBytesTransferred();
+        long totalBytes = taskSnapshot.getTotalByteCount();
+        if (throttle.update(bytesTransferred, totalBytes)) {
+          sendDownloadProgress(fileRef, target, throttle, bytesTransferred, totalBytes);
+        }
+      }
+    }).addOnPausedListener(new OnPausedListener<FileDownloadTask.TaskSnapshot>() {
+      @Override
+      public void onPaused(FileDownloadTask.TaskSnapshot taskSnapshot) {
+        WritableMap data = Arguments.createMap();
+        data.putString("eventName", "download_paused");
+        data.putString("path", fileRef.getPath());
+        data.putString("localPath", target.getAbsolutePath());
+        data.putString("ref", fileRef.getBucket());
+        FirestackUtils.sendEvent(mReactContext, "download_paused", data);
+      }
+    });
+  }
+
+  // The SDK's file download cannot start part way through, so the rest of
+  // a partial download is fetched from its download url with a range request.
+  // A 206 for some other range, object size or generation than the one
+  // asked for can't be appended, so the part is dropped and the whole file
+  // downloaded through the SDK
+  private void resumeRangeDownload(final StorageReference fileRef,
+                                   final StorageMetadata storageMetadata,
+                                   final File target,
+                                   final File part,
+                                   final FirestackProgressThrottle throttle,
+                                   final Callback callback) {
+    final String downloadUrl = storageMetadata.getDownloadUrl().toString();
+    final long totalBytes = storageMetadata.getSizeBytes();
+    boolean queued = mDownloadExecutor.execute(target.getAbsolutePath(), new Runnable() {
+      @Override
+      public void run() {
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+          long offset = part.length();
+          connection = (HttpURLConnection) new URL(downloadUrl).openConnection();
+          connection.setConnectTimeout(RANGE_CONNECT_TIMEOUT);
+          connection.setReadTimeout(RANGE_READ_TIMEOUT);
+          connection.setRequestProperty("Range", "bytes=" + offset + "-");
+          int code = connection.getResponseCode();
+          boolean append = code == HttpURLConnection.HTTP_PARTIAL;
+          if (!append && code != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected response " + code + " resuming download");
+          }
+          String range = connection.getHeaderField("Content-Range");
+          String generation = connection.getHeaderField("x-goog-generation");
+          if (append && (range == null ||
+                         !range.trim().startsWith("bytes " + offset + "-") ||
+                         !range.trim().endsWith("/" + totalBytes) ||
+                         (generation != null && !generation.equals(storageMetadata.getGeneration())))) {
+            Log.w(TAG, "Asked for bytes " + offset + "-/" + totalBytes + " of generation " +
+                       storageMetadata.getGeneration() + " but got " + range + " of " + generation +
+                       ", downloading it all");
+            restartDownload(fileRef, target, part, throttle, callback);
+            return;
+          }
+          if (!append) {
+            offset = 0;
+          }
+
+          in = connection.getInputStream();
+          out = new FileOutputStream(part, append);
+          byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+          long bytesTransferred = offset;
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            bytesTransferred += read;
+            if (throttle.update(bytesTransferred, totalBytes)) {
+              sendDownloadProgress(fileRef, target, throttle, bytesTransferred, totalBytes);
+            }
+          }
+          out.close();
+          out = null;
+
+          finishResumedDownload(fileRef, storageMetadata, target, part, offset, throttle, callback);
+        } catch (Exception ex) {
+          Log.e(TAG, "Failed to resume download " + ex.getMessage());
+          callback.invoke(makeErrorPayload(1, ex));
+        } finally {
+          closeQuietly(in);
+          closeQuietly(out);
+          if (connection != null) {
+            connection.disconnect();
+          }
+        }
+      }
+    });
+    if (!queued) {
+      callback.invoke(makeErrorPayload("Storage executor is busy, try again later"));
     }
-    catch (Exception ex) {
-      callback.invoke(makeErrorPayload(2, ex));
+  }
+
+  // a part stitched together from two runs is only kept when it is the
+  // object the metadata describes: its size, and its md5 hash when storage
+  // has one. Anything else is dropped and downloaded again in full
+  private void finishResumedDownload(final StorageReference fileRef,
+                                     final StorageMetadata storageMetadata,
+                                     final File target,
+                                     final File part,
+                                     final long resumedFrom,
+                                     final FirestackProgressThrottle throttle,
+                                     final Callback callback) {
+    long totalBytes = storageMetadata.getSizeBytes();
+    String md5Hash = storageMetadata.getMd5Hash();
+    boolean intact;
+    try {
+      intact = part.length() == totalBytes &&
+               (md5Hash == null || FirestackMediaCache.matches(md5Hash, part));
+    } catch (IOException ex) {
+      Log.w(TAG, "Could not check " + part.getAbsolutePath() + ": " + ex.getMessage());
+      intact = false;
+    }
+    if (!intact) {
+      Log.w(TAG, "Resumed download of " + fileRef.getPath() + " does not match its metadata, downloading it all");
+      restartDownload(fileRef, target, part, throttle, callback);
+      return;
     }
+    finishDownload(fileRef, target, part, totalBytes, resumedFrom, callback);
   }
 
-  @ReactMethod
-  public void getRealPathFromURI(final String uri, final Callback callback) {
+  private void restartDownload(final StorageReference fileRef,
+                               final File target,
+                               final File part,
+                               final FirestackProgressThrottle throttle,
+                               final Callback callback) {
+    part.delete();
+    startFileDownload(fileRef, target, part, true, throttle, callback);
+  }
+
+  private void finishDownload(final StorageReference fileRef,
+                              final File target,
+                              final File part,
+                              final long totalBytes,
+                              final long resumedFrom,
+                              final Callback callback) {
+    if ((target.exists() && !target.delete()) || !part.renameTo(target)) {
+      callback.invoke(makeErrorPayload("Could not move download to " + target.getAbsolutePath()));
+      return;
+    }
+
+    WritableMap resp = Arguments.createMap();
+    resp.putString("status", "success");
+    resp.putString("fullPath", fileRef.getPath());
+    resp.putString("bucket", fileRef.getBucket());
+    resp.putString("name", fileRef.getName());
+    resp.putString("localPath", target.getAbsolutePath());
+    resp.putDouble("totalBytes", totalBytes);
+    resp.putDouble("resumedFrom", resumedFrom);
+    callback.invoke(null, resp);
+  }
+
+  private WritableMap localFileResult(final FirestackMetadataCache.Entry entry,
+                                      final File file,
+                                      final boolean cached) {
+    WritableMap res = Arguments.createMap();
+    res.putString("status", "success");
+    res.putString("bucket", entry.bucket);
+    res.putString("fullPath", entry.path);
+    res.putString("localPath", file.getAbsolutePath());
+    res.putString("md5hash", entry.md5Hash);
+    res.putDouble("sizeBytes", entry.sizeBytes);
+    res.putString("contentType", entry.contentType);
+    res.putBoolean("cached", cached);
+    return res;
+  }
+
+  private void sendDownloadProgress(final StorageReference fileRef,
+                                    final File target,
+                                    final FirestackProgressThrottle throttle,
+                                    final long bytesTransferred,
+                                    final long totalBytes) {
+    WritableMap data = Arguments.createMap();
+    data.putString("eventName", "download_progress");
+    data.putString("path", fileRef.getPath());
+    data.putString("localPath", target.getAbsolutePath());
+    throttle.putProgress(data, bytesTransferred, totalBytes);
+    FirestackUtils.sendEvent(mReactContext, "download_progress", data);
+  }
+
+  // partial downloads of older generations of the object can never be
+  // resumed; only <name>.<generation>.part is touched, not e.g. the
+  // <name>.part of a download running without resume
+  private void removeStaleParts(final File target, final File current) {
+    File dir = target.getAbsoluteFile().getParentFile();
+    File[] files = dir == null ? null : dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Pattern stale = Pattern.compile(Pattern.quote(target.getName()) + "\\.[0-9]+\\.part");
+    for (File file : files) {
+      if (stale.matcher(file.getName()).matches() && !file.equals(current)) {
+        file.delete();
+      }
+    }
+  }
+
+  private static void closeQuietly(final Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
     try {
-      Context context = getReactApplicationContext();
-      String [] proj = {MediaStore.Images.Media.DATA};
-      Cursor cursor = context.getContentResolver().query(Uri.parse(uri), proj,  null, null, null);
-      int column_index = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-      cursor.moveToFirst();
-      String path = cursor.getString(column_index); 
-      cursor.close();
-  
-      callback.invoke(null, path);
-    } catch (Exception ex) {
-      ex.printStackTrace();
-      callback.invoke(makeErrorPayload(1, ex));
+      closeable.close();
+    } catch (IOException ignored) {
     }
   }
 
+  private void onUploadFailed(final FirestackUploadManager.Upload upload, final Exception exception) {
+    Log.e(TAG, "Failed to upload file " + exception.getMessage());
+    mScheduler.release(upload);
+
+    // a cancelled upload is already forgotten; anything else keeps its
+    // session so it can be resumed
+    boolean cancelled = mUploads.get(upload.id) != upload;
+    if (!cancelled) {
+      mUploads.setState(upload, FirestackUploadManager.STATE_FAILED);
+    }
+    sendUploadError(upload, cancelled, exception);
+  }
+
+  private void sendUploadError(final FirestackUploadManager.Upload upload,
+                               final boolean cancelled,
+                               final Exception exception) {
+    WritableMap data = Arguments.createMap();
+    data.putString("eventName", "upload_error");
+    data.putString("uploadId", upload.id);
+    data.putString("path", upload.name);
+    data.putBoolean("cancelled", cancelled);
+    data.putString("description", exception.getLocalizedMessage());
+    FirestackUtils.sendEvent(mReactContext, "upload_error", data);
+
+    Callback callback = upload.callback;
+    upload.callback = null;
+    if (callback != null) {
+      WritableMap err = Arguments.createMap();
+      err.putString("uploadId", upload.id);
+      err.putBoolean("cancelled", cancelled);
+      err.putString("description", exception.getLocalizedMessage());
+
+      callback.invoke(err);
+    }
+  }
+
+  /**
+   * filepath may be a plain path or a file:// or content:// uri. putFile
+   * reads content uris (gallery items, documents) through the content
+   * resolver itself, so they upload without being copied to a file first
+   * and still get a resumable session
+   */
+  private static Uri toUploadUri(final String filepath) {
+    if (filepath.startsWith(ContentResolver.SCHEME_CONTENT + "://") ||
+        filepath.startsWith(ContentResolver.SCHEME_FILE + "://")) {
+      return Uri.parse(filepath);
+    }
+    return Uri.fromFile(new File(filepath));
+  }
+
+  // a downscaled copy is only needed until its upload is over; a failed
+  // upload keeps it to resume from
+  private void deleteProcessedFile(final FirestackUploadManager.Upload upload) {
+    if (FirestackImageProcessor.isProcessedFile(getReactApplicationContext(), upload.filepath)) {
+      new File(upload.filepath).delete();
+    }
+  }
+
+  private StorageMetadata buildMetadata(final JSONObject metadata, final Uri file) {
+    StorageMetadata.Builder metadataBuilder = new StorageMetadata.Builder();
+    if (metadata.has("contentType")) {
+      metadataBuilder.setContentType(metadata.optString("contentType"));
+    } else if (ContentResolver.SCHEME_CONTENT.equals(file.getScheme())) {
+      String contentType = getReactApplicationContext().getContentResolver().getType(file);
+      if (contentType != null) {
+        metadataBuilder.setContentType(contentType);
+      }
+    }
+    if (metadata.has("cacheControl")) {
+      metadataBuilder.setCacheControl(metadata.optString("cacheControl"));
+    }
+    if (metadata.has("contentDisposition")) {
+      metadataBuilder.setContentDisposition(metadata.optString("contentDisposition"));
+    }
+    if (metadata.has("contentEncoding")) {
+      metadataBuilder.setContentEncoding(metadata.optString("contentEncoding"));
+    }
+    if (metadata.has("contentLanguage")) {
+      metadataBuilder.setContentLanguage(metadata.optString("contentLanguage"));
+    }
+    JSONObject custom = metadata.optJSONObject("customMetadata");
+    if (custom != null) {
+      Iterator<String> keys = custom.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        metadataBuilder.setCustomMetadata(key, custom.optString(key));
+      }
+    }
+    return metadataBuilder.build();
+  }
+
+  private WritableMap uploadStatus(final FirestackUploadManager.Upload upload) {
+    WritableMap res = mUploads.toMap(upload);
+    res.putString("status", "success");
+    return res;
+  }
+
+  @ReactMethod
+  public void getRealPathFromURI(final String uri, final Callback callback) {
+    // the cursor query can block, so keep it off the bridge thread
+    execute(uri, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Context context = getReactApplicationContext();
+          String [] proj = {MediaStore.Images.Media.DATA};
+          Cursor cursor = context.getContentResolver().query(Uri.parse(uri), proj,  null, null, null);
+          int column_index = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+          cursor.moveToFirst();
+          String path = cursor.getString(column_index);
+          cursor.close();
+
+          callback.invoke(null, path);
+        } catch (Exception ex) {
+          ex.printStackTrace();
+          callback.invoke(makeErrorPayload(1, ex));
+        }
+      }
+    }, callback);
+  }
+
   private WritableMap getDownloadData(final UploadTask.TaskSnapshot taskSnapshot) {
     Uri downloadUrl = taskSnapshot.getDownloadUrl();
     StorageMetadata d = taskSnapshot.getMetadata();
@@ -270,6 +1281,21 @@ Log.i(TAG, "From file: " + filepath + " to " + urlStr + " with name " + name);
     return error;
   }
 
+  // work refused by the busy executor fails its callback instead of
+  // running on the calling thread
+  private void execute(final String key, final Runnable task, final Callback callback) {
+    if (!mExecutor.execute(key, task)) {
+      callback.invoke(makeErrorPayload("Storage executor is busy, try again later"));
+    }
+  }
+
+  private WritableMap makeErrorPayload(final String description) {
+    WritableMap error = Arguments.createMap();
+    error.putString("status", "error");
+    error.putString("description", description);
+    return error;
+  }
+
   // Comes almost directory from react-native-fs
   @Override
   public Map<String, Object> getConstants() {
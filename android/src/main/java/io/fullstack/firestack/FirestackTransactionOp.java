@@ -0,0 +1,137 @@
+package io.fullstack.firestack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+
+/**
+ * A transaction update function described from javascript, so it can run
+ * (and be retried by Firebase) entirely on the native side.
+ *
+ *   { type: 'increment', value: 1 }
+ *   { type: 'append', value: {...} }
+ *   { type: 'max' | 'min', value: 10 }
+ *   { type: 'setIfEquals', value: 'b', expected: 'a' }
+ *   { type: 'setIfMissing', value: 'a' }
+ *
+ * Conditional ops abort the transaction when the condition doesn't hold.
+ */
+class FirestackTransactionOp {
+  private final String mType;
+  private final Object mValue;
+  private final Object mExpected;
+  private int mAttempts = 0;
+
+  private FirestackTransactionOp(final String type,
+                                 final Object value,
+                                 final Object expected) {
+    mType = type;
+    mValue = value;
+    mExpected = expected;
+  }
+
+  public static FirestackTransactionOp parse(final ReadableMap op) {
+    Map<String, Object> map = FirestackUtils.recursivelyDeconstructReadableMap(op);
+    String type = (String) map.get("type");
+    if (type == null) {
+      throw new IllegalArgumentException("Transaction op is missing a type");
+    }
+    if (!type.equals("increment") && !type.equals("append") &&
+        !type.equals("max") && !type.equals("min") &&
+        !type.equals("setIfEquals") && !type.equals("setIfMissing")) {
+      throw new IllegalArgumentException("Unknown transaction op: " + type);
+    }
+    if ((type.equals("increment") || type.equals("max") || type.equals("min")) &&
+        !(map.get("value") instanceof Number)) {
+      throw new IllegalArgumentException("Transaction op " + type + " needs a numeric value");
+    }
+    return new FirestackTransactionOp(type, map.get("value"), map.get("expected"));
+  }
+
+  /**
+   * How many times Firebase ran the update function, i.e. retries + 1
+   */
+  public synchronized int getAttempts() {
+    return mAttempts;
+  }
+
+  public Transaction.Result apply(final MutableData data) {
+    synchronized (this) {
+      mAttempts++;
+    }
+    Object current = data.getValue();
+
+    if (mType.equals("increment")) {
+      if (current != null && !(current instanceof Number)) {
+        return Transaction.abort();
+      }
+      data.setValue(add((Number) current, (Number) mValue));
+    } else if (mType.equals("max") || mType.equals("min")) {
+      if (current != null && !(current instanceof Number)) {
+        return Transaction.abort();
+      }
+      double next = ((Number) mValue).doubleValue();
+      if (current != null) {
+        double prev = ((Number) current).doubleValue();
+        if (mType.equals("max") ? next <= prev : next >= prev) {
+          return Transaction.abort();
+        }
+      }
+      data.setValue(mValue);
+    } else if (mType.equals("append")) {
+      List<Object> list = new ArrayList<Object>();
+      if (current instanceof List) {
+        list.addAll((List<Object>) current);
+      } else if (current != null) {
+        return Transaction.abort();
+      }
+      list.add(mValue);
+      data.setValue(list);
+    } else if (mType.equals("setIfMissing")) {
+      if (current != null) {
+        return Transaction.abort();
+      }
+      data.setValue(mValue);
+    } else {
+      if (!same(current, mExpected)) {
+        return Transaction.abort();
+      }
+      data.setValue(mValue);
+    }
+    return Transaction.success(data);
+  }
+
+  // keep whole numbers as Long so counters don't turn into doubles
+  private static Number add(Number current, final Number delta) {
+    if (current == null) {
+      current = 0L;
+    }
+    if (isWhole(current) && isWhole(delta)) {
+      return current.longValue() + delta.longValue();
+    }
+    return current.doubleValue() + delta.doubleValue();
+  }
+
+  private static boolean isWhole(final Number n) {
+    if (n instanceof Long || n instanceof Integer) {
+      return true;
+    }
+    double d = n.doubleValue();
+    return d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < (double) Long.MAX_VALUE;
+  }
+
+  private static boolean same(final Object a, final Object b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    if (a instanceof Number && b instanceof Number) {
+      return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+    }
+    return a.equals(b);
+  }
+}
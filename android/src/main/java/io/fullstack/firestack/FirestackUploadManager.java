@@ -0,0 +1,262 @@
+package io.fullstack.firestack;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.google.firebase.storage.UploadTask;
+
+/**
+ * Keeps uploads by id and persists what it takes to pick each one up
+ * again after the process dies: destination, local file, metadata and,
+ * once the SDK has opened one, the resumable upload session. Restarting
+ * through that session continues from the last byte the server has
+ * instead of sending the whole file again.
+ *
+ * An entry is forgotten when its upload succeeds or is cancelled. Failed
+ * uploads, and uploads that were running when the process died, stay
+ * until they are resumed or cancelled. An upload whose photo is still
+ * being processed isn't persisted until it is done, since the file it
+ * would be restored with is not the one to send.
+ */
+class FirestackUploadManager {
+  private static final String TAG = "FirestackUploadManager";
+  private static final String PREFS_NAME = "FirestackUploads";
+
+  // progress is written at most this often, the session uri as soon as it changes
+  private static final long PERSIST_INTERVAL = 2000;
+
+  public static final String STATE_PROCESSING = "processing";
+  public static final String STATE_QUEUED = "queued";
+  public static final String STATE_RUNNING = "running";
+  public static final String STATE_PAUSED = "paused";
+  public static final String STATE_FAILED = "failed";
+  public static final String STATE_INTERRUPTED = "interrupted";
+
+  static class Upload {
+    final String id;
+    final String url;
+    final String name;
+    String filepath;
+    final JSONObject metadata;
+    final int priority;
+    String sessionUri;
+    long bytesTransferred = 0;
+    long totalBytes = -1;
+    String state = STATE_RUNNING;
+    long persistedAt = 0;
+    UploadTask task;
+    // set while the caller of startUpload is still waiting on the result
+    Callback callback;
+    long progressInterval = FirestackProgressThrottle.DEFAULT_MIN_INTERVAL;
+    double progressDelta = FirestackProgressThrottle.DEFAULT_MIN_DELTA;
+    // options.image: whether the photo is still being processed, and then
+    // whether it was (null without options.image)
+    boolean processing = false;
+    Boolean processed;
+
+    // scheduling and throughput, see FirestackUploadScheduler
+    long queuedAt = 0;
+    long sequence = 0;
+    long firstStartedAt = 0;
+    // when the current run started, and how much had been sent by then
+    long startedAt = 0;
+    long startedAtBytes = 0;
+    long sampledAt = 0;
+    long sampledBytes = 0;
+    double bytesPerSecond = 0;
+
+    Upload(final String id,
+           final String url,
+           final String name,
+           final String filepath,
+           final JSONObject metadata,
+           final int priority) {
+      this.id = id;
+      this.url = url;
+      this.name = name;
+      this.filepath = filepath;
+      this.metadata = metadata;
+      this.priority = priority;
+    }
+  }
+
+  private final SharedPreferences mPrefs;
+  private final LinkedHashMap<String, Upload> mUploads = new LinkedHashMap<String, Upload>();
+
+  public FirestackUploadManager(final Context context) {
+    mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    restore();
+  }
+
+  public synchronized Upload create(final String id,
+                                    final String url,
+                                    final String name,
+                                    final String filepath,
+                                    final JSONObject metadata,
+                                    final int priority,
+                                    final boolean processing) {
+    Upload upload = new Upload(id, url, name, filepath, metadata, priority);
+    upload.processing = processing;
+    upload.state = processing ? STATE_PROCESSING : STATE_QUEUED;
+    mUploads.put(id, upload);
+    persist(upload);
+    return upload;
+  }
+
+  /**
+   * Records the outcome of processing an upload's photo: the file to send
+   * instead (null to send the original) and its content type. Returns
+   * false when the upload was cancelled in the meantime
+   */
+  public synchronized boolean setProcessed(final Upload upload,
+                                           @Nullable final String filepath,
+                                           @Nullable final String contentType) {
+    if (mUploads.get(upload.id) != upload) {
+      return false;
+    }
+    upload.processing = false;
+    upload.processed = filepath != null;
+    if (filepath != null) {
+      upload.filepath = filepath;
+      try {
+        upload.metadata.put("contentType", contentType);
+      } catch (JSONException ex) {
+        Log.w(TAG, "Could not set the content type of upload " + upload.id);
+      }
+    }
+    return true;
+  }
+
+  public synchronized Upload get(final String id) {
+    return mUploads.get(id);
+  }
+
+  public synchronized void remove(final String id) {
+    if (mUploads.remove(id) != null) {
+      mPrefs.edit().remove(id).apply();
+    }
+  }
+
+  public synchronized void setState(final Upload upload, final String state) {
+    upload.state = state;
+    if (mUploads.get(upload.id) == upload) {
+      persist(upload);
+    }
+  }
+
+  public synchronized void onProgress(final Upload upload, final UploadTask.TaskSnapshot taskSnapshot) {
+    upload.bytesTransferred = taskSnapshot.getBytesTransferred();
+    upload.totalBytes = taskSnapshot.getTotalByteCount();
+
+    String sessionUri = null;
+    if (taskSnapshot.getUploadSessionUri() != null) {
+      sessionUri = taskSnapshot.getUploadSessionUri().toString();
+    }
+    boolean sessionChanged = sessionUri != null && !sessionUri.equals(upload.sessionUri);
+    if (sessionChanged) {
+      upload.sessionUri = sessionUri;
+    }
+    if (mUploads.get(upload.id) == upload &&
+        (sessionChanged || System.currentTimeMillis() - upload.persistedAt >= PERSIST_INTERVAL)) {
+      persist(upload);
+    }
+  }
+
+  public synchronized List<Upload> getUploads() {
+    return new ArrayList<Upload>(mUploads.values());
+  }
+
+  public synchronized WritableArray toArray() {
+    WritableArray uploads = Arguments.createArray();
+    for (Upload upload : mUploads.values()) {
+      uploads.pushMap(toMap(upload));
+    }
+    return uploads;
+  }
+
+  public synchronized WritableMap toMap(final Upload upload) {
+    WritableMap map = Arguments.createMap();
+    map.putString("uploadId", upload.id);
+    map.putString("url", upload.url);
+    map.putString("path", upload.name);
+    map.putString("filepath", upload.filepath);
+    map.putString("state", upload.state);
+    map.putString("priority", FirestackUploadScheduler.priorityName(upload.priority));
+    map.putDouble("bytesTransferred", upload.bytesTransferred);
+    map.putDouble("totalBytes", upload.totalBytes);
+    map.putBoolean("resumable", upload.sessionUri != null);
+    if (upload.processed != null) {
+      map.putBoolean("processed", upload.processed);
+    }
+    return map;
+  }
+
+  private void persist(final Upload upload) {
+    if (upload.processing) {
+      return;
+    }
+    try {
+      JSONObject json = new JSONObject();
+      json.put("url", upload.url);
+      json.put("name", upload.name);
+      json.put("filepath", upload.filepath);
+      json.put("metadata", upload.metadata);
+      json.putOpt("sessionUri", upload.sessionUri);
+      json.put("bytesTransferred", upload.bytesTransferred);
+      json.put("totalBytes", upload.totalBytes);
+      json.put("state", upload.state);
+      json.put("priority", upload.priority);
+      mPrefs.edit().putString(upload.id, json.toString()).apply();
+      upload.persistedAt = System.currentTimeMillis();
+    } catch (JSONException ex) {
+      Log.e(TAG, "Could not persist upload " + upload.id, ex);
+    }
+  }
+
+  // anything still running or queued was cut off by the process going away
+  private void restore() {
+    for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+      if (!(entry.getValue() instanceof String)) {
+        continue;
+      }
+      try {
+        JSONObject json = new JSONObject((String) entry.getValue());
+        Upload upload = new Upload(entry.getKey(),
+          json.isNull("url") ? null : json.optString("url"),
+          json.optString("name"),
+          json.optString("filepath"),
+          json.optJSONObject("metadata") != null ? json.optJSONObject("metadata") : new JSONObject(),
+          json.optInt("priority", FirestackUploadScheduler.PRIORITY_NORMAL));
+        upload.sessionUri = json.isNull("sessionUri") ? null : json.optString("sessionUri", null);
+        upload.bytesTransferred = json.optLong("bytesTransferred", 0);
+        upload.totalBytes = json.optLong("totalBytes", -1);
+        String state = json.optString("state", STATE_INTERRUPTED);
+        upload.state = STATE_RUNNING.equals(state) || STATE_QUEUED.equals(state) ?
+          STATE_INTERRUPTED :
+          state;
+        mUploads.put(upload.id, upload);
+      } catch (JSONException ex) {
+        Log.w(TAG, "Dropping unreadable upload " + entry.getKey());
+        mPrefs.edit().remove(entry.getKey()).apply();
+      }
+    }
+    if (!mUploads.isEmpty()) {
+      Log.d(TAG, "Restored " + mUploads.size() + " unfinished uploads");
+    }
+  }
+}
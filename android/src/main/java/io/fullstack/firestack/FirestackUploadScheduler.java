@@ -0,0 +1,254 @@
+package io.fullstack.firestack;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+/**
+ * Starts uploads at most maxConcurrent at a time, so fifty picked photos
+ * share the link as a few uploads that finish one after another rather
+ * than fifty that all finish late.
+ *
+ * Waiting uploads are kept in one FIFO per priority class and the next
+ * one started is the head of the highest class. So that a steady stream
+ * of high priority uploads cannot starve the rest, a waiting upload is
+ * treated as one class higher for every AGING_INTERVAL ms it has waited.
+ * Paused uploads give up their slot and queue again when resumed.
+ *
+ * While anything is running an upload_throughput event reports each
+ * running upload's rate and the aggregate every throughputInterval ms.
+ */
+class FirestackUploadScheduler {
+  private static final String TAG = "FirestackUploadScheduler";
+
+  public static final int PRIORITY_HIGH = 0;
+  public static final int PRIORITY_NORMAL = 1;
+  public static final int PRIORITY_LOW = 2;
+
+  public static final int DEFAULT_MAX_CONCURRENT = 3;
+  public static final int DEFAULT_THROUGHPUT_INTERVAL = 1000;
+
+  private static final long AGING_INTERVAL = 30000;
+
+  interface Starter {
+    void start(FirestackUploadManager.Upload upload);
+  }
+
+  private final ReactContext mReactContext;
+  private final Starter mStarter;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final ArrayList<ArrayDeque<FirestackUploadManager.Upload>> mQueues =
+    new ArrayList<ArrayDeque<FirestackUploadManager.Upload>>();
+  private final ArrayList<FirestackUploadManager.Upload> mRunning =
+    new ArrayList<FirestackUploadManager.Upload>();
+  private int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+  private int mThroughputInterval = DEFAULT_THROUGHPUT_INTERVAL;
+  private long mSequence = 0;
+  private boolean mReportScheduled = false;
+
+  private final Runnable mReportRunnable = new Runnable() {
+    @Override
+    public void run() {
+      WritableMap report;
+      synchronized (FirestackUploadScheduler.this) {
+        mReportScheduled = false;
+        if (mRunning.isEmpty()) {
+          return;
+        }
+        report = throughputReportLocked();
+        scheduleReportLocked();
+      }
+      FirestackUtils.sendEvent(mReactContext, "upload_throughput", report);
+    }
+  };
+
+  public FirestackUploadScheduler(final ReactContext reactContext, final Starter starter) {
+    mReactContext = reactContext;
+    mStarter = starter;
+    for (int i = PRIORITY_HIGH; i <= PRIORITY_LOW; i++) {
+      mQueues.add(new ArrayDeque<FirestackUploadManager.Upload>());
+    }
+  }
+
+  public static int parsePriority(final String priority) {
+    if ("high".equals(priority)) {
+      return PRIORITY_HIGH;
+    }
+    if ("low".equals(priority)) {
+      return PRIORITY_LOW;
+    }
+    return PRIORITY_NORMAL;
+  }
+
+  public static String priorityName(final int priority) {
+    switch (priority) {
+      case PRIORITY_HIGH:
+        return "high";
+      case PRIORITY_LOW:
+        return "low";
+      default:
+        return "normal";
+    }
+  }
+
+  public void submit(final FirestackUploadManager.Upload upload) {
+    synchronized (this) {
+      if (mRunning.contains(upload) || mQueues.get(upload.priority).contains(upload)) {
+        return;
+      }
+      upload.queuedAt = System.currentTimeMillis();
+      upload.sequence = mSequence++;
+      mQueues.get(upload.priority).add(upload);
+    }
+    pump();
+  }
+
+  /**
+   * Frees the slot or queue place of an upload that finished, failed,
+   * was paused or was cancelled
+   */
+  public void release(final FirestackUploadManager.Upload upload) {
+    synchronized (this) {
+      if (!mRunning.remove(upload)) {
+        mQueues.get(upload.priority).remove(upload);
+        return;
+      }
+    }
+    pump();
+  }
+
+  public synchronized boolean isQueued(final FirestackUploadManager.Upload upload) {
+    return mQueues.get(upload.priority).contains(upload);
+  }
+
+  public synchronized void onProgress(final FirestackUploadManager.Upload upload, final long bytesTransferred) {
+    long now = System.currentTimeMillis();
+    if (upload.sampledAt == 0) {
+      upload.sampledAt = now;
+      upload.sampledBytes = bytesTransferred;
+      return;
+    }
+    long elapsed = now - upload.sampledAt;
+    if (elapsed >= mThroughputInterval) {
+      upload.bytesPerSecond = (bytesTransferred - upload.sampledBytes) * 1000d / elapsed;
+      upload.sampledAt = now;
+      upload.sampledBytes = bytesTransferred;
+    }
+  }
+
+  public void configure(final int maxConcurrent, final int throughputInterval) {
+    synchronized (this) {
+      mMaxConcurrent = Math.max(1, maxConcurrent);
+      mThroughputInterval = Math.max(100, throughputInterval);
+    }
+    pump();
+  }
+
+  public synchronized WritableMap toMap() {
+    WritableMap map = throughputReportLocked();
+    map.putInt("maxConcurrent", mMaxConcurrent);
+    map.putInt("throughputInterval", mThroughputInterval);
+    return map;
+  }
+
+  private void pump() {
+    List<FirestackUploadManager.Upload> starting = new ArrayList<FirestackUploadManager.Upload>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      while (mRunning.size() < mMaxConcurrent) {
+        FirestackUploadManager.Upload next = pollNextLocked(now);
+        if (next == null) {
+          break;
+        }
+        if (next.firstStartedAt == 0) {
+          next.firstStartedAt = now;
+        }
+        next.startedAt = now;
+        next.startedAtBytes = next.bytesTransferred;
+        next.sampledAt = 0;
+        next.bytesPerSecond = 0;
+        mRunning.add(next);
+        starting.add(next);
+      }
+      if (!mRunning.isEmpty()) {
+        scheduleReportLocked();
+      }
+    }
+    for (FirestackUploadManager.Upload upload : starting) {
+      Log.d(TAG, "Starting upload " + upload.id + " (" + priorityName(upload.priority) + ")");
+      try {
+        mStarter.start(upload);
+      } catch (Exception ex) {
+        Log.e(TAG, "Could not start upload " + upload.id, ex);
+        release(upload);
+      }
+    }
+  }
+
+  private FirestackUploadManager.Upload pollNextLocked(final long now) {
+    ArrayDeque<FirestackUploadManager.Upload> best = null;
+    double bestRank = 0;
+    long bestSequence = 0;
+    for (ArrayDeque<FirestackUploadManager.Upload> queue : mQueues) {
+      FirestackUploadManager.Upload head = queue.peek();
+      if (head == null) {
+        continue;
+      }
+      double rank = head.priority - (double) (now - head.queuedAt) / AGING_INTERVAL;
+      if (best == null || rank < bestRank || (rank == bestRank && head.sequence < bestSequence)) {
+        best = queue;
+        bestRank = rank;
+        bestSequence = head.sequence;
+      }
+    }
+    return best == null ? null : best.poll();
+  }
+
+  private int queuedCountLocked() {
+    int count = 0;
+    for (ArrayDeque<FirestackUploadManager.Upload> queue : mQueues) {
+      count += queue.size();
+    }
+    return count;
+  }
+
+  private WritableMap throughputReportLocked() {
+    WritableArray tasks = Arguments.createArray();
+    double total = 0;
+    for (FirestackUploadManager.Upload upload : mRunning) {
+      WritableMap task = Arguments.createMap();
+      task.putString("uploadId", upload.id);
+      task.putString("path", upload.name);
+      task.putString("priority", priorityName(upload.priority));
+      task.putDouble("bytesTransferred", upload.bytesTransferred);
+      task.putDouble("totalBytes", upload.totalBytes);
+      task.putDouble("bytesPerSecond", upload.bytesPerSecond);
+      tasks.pushMap(task);
+      total += upload.bytesPerSecond;
+    }
+    WritableMap report = Arguments.createMap();
+    report.putString("eventName", "upload_throughput");
+    report.putInt("running", mRunning.size());
+    report.putInt("queued", queuedCountLocked());
+    report.putDouble("bytesPerSecond", total);
+    report.putArray("tasks", tasks);
+    return report;
+  }
+
+  private void scheduleReportLocked() {
+    if (mReportScheduled) {
+      return;
+    }
+    mReportScheduled = true;
+    mHandler.postDelayed(mReportRunnable, mThroughputInterval);
+  }
+}
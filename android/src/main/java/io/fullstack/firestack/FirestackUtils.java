@@ -8,7 +8,6 @@ import java.util.List;
 import java.util.Map;
 
 import com.facebook.react.bridge.ReactContext;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.WritableMap;
@@ -39,67 +38,26 @@ public class FirestackUtils {
   public static void sendEvent(final ReactContext context,
     final String eventName,
     final WritableMap params) {
-    if (context.hasActiveCatalystInstance()) {
-      context
-          .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-          .emit(eventName, params);
-    } else {
-      Log.d(TAG, "Waiting for CatalystInstance before sending event");
-    }
+    FirestackMetrics.recordEmit(eventName, params);
+    emitEvent(context, eventName, params);
+  }
+
+  /**
+   * sendEvent without recording metrics, for payloads whose contents were
+   * already recorded one by one (e.g. a batch of events)
+   **/
+  static void emitEvent(final ReactContext context,
+    final String eventName,
+    final WritableMap params) {
+    // held until the CatalystInstance is up rather than dropped
+    FirestackEventBuffer.send(context, eventName, params);
   }
 
   // snapshot
   public static WritableMap dataSnapshotToMap(String name, 
     String path, 
     DataSnapshot dataSnapshot) {
-      WritableMap data = Arguments.createMap();
-
-      data.putString("key", dataSnapshot.getKey());
-      data.putBoolean("exists", dataSnapshot.exists());
-      data.putBoolean("hasChildren", dataSnapshot.hasChildren());
-
-      data.putDouble("childrenCount", dataSnapshot.getChildrenCount());
-      if (!dataSnapshot.hasChildren()) {
-        Object value = dataSnapshot.getValue();
-        String type = value!=null ? value.getClass().getName() : "";
-        switch (type) {
-          case "java.lang.Boolean":
-            data.putBoolean("value", (Boolean)value);
-            break;
-          case "java.lang.Long":
-            Long longVal = (Long) value;
-            data.putDouble("value", (double)longVal);
-            break;
-          case "java.lang.Double":
-            data.putDouble("value", (Double) value);
-            break;
-          case "java.lang.String":
-            data.putString("value",(String) value);
-            break;
-          default:
-            data.putString("value", null);
-        }
-      } else{
-        WritableMap valueMap = FirestackUtils.castSnapshotValue(dataSnapshot);
-        data.putMap("value", valueMap);
-      }
-
-      // Child keys
-      WritableArray childKeys = FirestackUtils.getChildKeys(dataSnapshot);
-      data.putArray("childKeys", childKeys);
-
-      Object priority = dataSnapshot.getPriority();
-      if (priority == null) {
-        data.putString("priority", null);
-      } else {
-        data.putString("priority", priority.toString());
-      }
-
-      WritableMap eventMap = Arguments.createMap();
-      eventMap.putString("eventName", name);
-      eventMap.putMap("snapshot", data);
-      eventMap.putString("path", path);
-      return eventMap;
+      return FirestackSnapshotSerializer.serialize(name, path, dataSnapshot);
   }
 
   public static <Any> Any castSnapshotValue(DataSnapshot snapshot) {
@@ -163,11 +121,31 @@ public class FirestackUtils {
     return childKeys;
   }
 
+  // 2^53 - 1, the largest integer a javascript number holds exactly
+  private static final double MAX_SAFE_INTEGER = 9007199254740991d;
+
+  /**
+   * Numbers from javascript come across as doubles. Whole numbers within
+   * the safe integer range are handed to Firebase as Long so they are
+   * stored (and indexed) as integers rather than as 1.0, 2.0, ...
+   */
+  public static Object toNumber(final double value) {
+    if (value == Math.rint(value) && Math.abs(value) <= MAX_SAFE_INTEGER) {
+      return (long) value;
+    }
+    return value;
+  }
+
   public static Map<String, Object> recursivelyDeconstructReadableMap(ReadableMap readableMap) {
+      // ReadableMap has no size(), so collect the keys first and size the map once
       ReadableMapKeySetIterator iterator = readableMap.keySetIterator();
-      Map<String, Object> deconstructedMap = new HashMap<>();
+      List<String> keys = new ArrayList<>();
       while (iterator.hasNextKey()) {
-          String key = iterator.nextKey();
+          keys.add(iterator.nextKey());
+      }
+
+      Map<String, Object> deconstructedMap = new HashMap<>((int) (keys.size() / 0.75f) + 1);
+      for (String key : keys) {
           ReadableType type = readableMap.getType(key);
           switch (type) {
               case Null:
@@ -177,7 +155,7 @@ public class FirestackUtils {
                   deconstructedMap.put(key, readableMap.getBoolean(key));
                   break;
               case Number:
-                  deconstructedMap.put(key, readableMap.getDouble(key));
+                  deconstructedMap.put(key, toNumber(readableMap.getDouble(key)));
                   break;
               case String:
                   deconstructedMap.put(key, readableMap.getString(key));
@@ -191,7 +169,6 @@ public class FirestackUtils {
               default:
                   throw new IllegalArgumentException("Could not convert object with key: " + key + ".");
           }
-
       }
       return deconstructedMap;
   }
@@ -208,7 +185,7 @@ public class FirestackUtils {
                   deconstructedList.add(i, readableArray.getBoolean(i));
                   break;
               case Number:
-                  deconstructedList.add(i, readableArray.getDouble(i));
+                  deconstructedList.add(i, toNumber(readableArray.getDouble(i)));
                   break;
               case String:
                   deconstructedList.add(i, readableArray.getString(i));
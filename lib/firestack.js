@@ -10,7 +10,7 @@ import Log from './utils/log'
 // const storage = require('firebase/storage');
 // const db = require('firebase/database');
 
-import {NativeModules, NativeEventEmitter, AsyncStorage} from 'react-native';
+import {Platform, NativeModules, NativeEventEmitter, AsyncStorage} from 'react-native';
 // TODO: Break out modules into component pieces
 // i.e. auth component, storage component, etc.
 const FirestackModule = NativeModules.Firestack;
@@ -122,6 +122,45 @@ export class Firestack extends Singleton {
     return promisify('serverValue', FirestackModule)();
   }
 
+  /**
+   * Bridge metrics (android only): counts, payload size estimates,
+   * serialization time and emit rate per event name and path.
+   * Recording is off until setMetricsEnabled(true).
+   */
+  setMetricsEnabled(enabled=true) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('setMetricsEnabled', FirestackModule)(enabled);
+  }
+
+  getMetrics() {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('getMetrics', FirestackModule)();
+  }
+
+  resetMetrics() {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('resetMetrics', FirestackModule)();
+  }
+
+  /**
+   * (android only) Events raised before the bridge is up are buffered and
+   * delivered once it is, rather than dropped
+   * @param {Object} options { capacity, dropPolicy: 'dropOldest'|'dropNewest' }
+   * @return {Promise} resolves with the buffer settings and dropped count
+   */
+  configureEventBuffer(options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('configureEventBuffer', FirestackModule)(options);
+  }
+
   /**
    * remote config
    */
@@ -1,14 +1,27 @@
 /**
  * Database representation wrapper
  */
-import {NativeModules, NativeEventEmitter} from 'react-native';
+import {Platform, NativeModules, NativeEventEmitter} from 'react-native';
 const FirestackDatabase = NativeModules.FirestackDatabase;
 const FirestackDatabaseEvt = new NativeEventEmitter(FirestackDatabase);
 
 import promisify from '../utils/promisify'
 import { Base, ReferenceBase } from './base'
 
+// callbacks by subscription key: the native listener handle on android,
+// the path on ios
 let dbSubscriptions = {};
+// last value snapshot by subscription key, used to reapply diffs and to
+// replay the current value to subscribers joining a shared listener
+let dbValueSnapshots = {};
+// events for android listener handles nothing subscribed to yet: a new
+// native listener can emit before the on() call that created it resolves.
+// Only kept while such a call is in flight
+let dbPendingEvents = {};
+let dbPendingOns = 0;
+// error callbacks by handle, for one-off reads that wait on events
+let dbErrorCallbacks = {};
+let onceCounter = 0;
 
 class DataSnapshot {
   static key:String;
@@ -101,21 +114,23 @@ class DatabaseQuery {
   }
 
   build() {
+    // android takes each modifier as an array so that numeric and
+    // boolean values keep their type, ios parses joined strings
     const argsSeparator = ':'
+    const encode = (args) => Platform.OS === 'android' ? args : args.join(argsSeparator);
     let modifiers = [];
     if (this.orderBy) {
-      modifiers.push(this.orderBy.join(argsSeparator));
+      modifiers.push(encode(this.orderBy));
     }
     if (this.limit) {
-      modifiers.push(this.limit.join(argsSeparator));
+      modifiers.push(encode(this.limit));
     }
     Object.keys(this.filters)
       .forEach(key => {
         let filter = this.filters[key];
         if (filter) {
           const cleanFilters = filter.filter((f) => typeof f !== "undefined");
-          const filterArgs = ([key].concat(cleanFilters)).join(argsSeparator);
-          modifiers.push(filterArgs);
+          modifiers.push(encode([key].concat(cleanFilters)));
         }
       })
     return modifiers;
@@ -140,6 +155,7 @@ class DatabaseRef extends ReferenceBase {
     this.db = db;
     this.query = new DatabaseQuery(this);
     this.listeners = {};
+    this.handles = [];
 
     // Aliases
     this.get = this.getAt;
@@ -202,23 +218,71 @@ class DatabaseRef extends ReferenceBase {
       })
   }
 
-  on(evt, cb) {
+  /**
+   * (android only) Run a transaction natively, described by a declarative op
+   * @param {Object} op { type: 'increment'|'append'|'max'|'min'|'setIfEquals'|'setIfMissing', value, expected }
+   * @param {Object} options { applyLocally }
+   * @return {Promise} resolves with { committed, attempts, retries, latency, snapshot }
+   */
+  transaction(op, options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    const path = this.dbPath();
+    return promisify('runTransaction', FirestackDatabase)(path, op, options)
+      .then(res => ({
+        ...res,
+        snapshot: res.snapshot ? new DataSnapshot(this, res.snapshot) : null
+      }));
+  }
+
+  /**
+   * Listen for events on this ref
+   * @param {String} evt     The event name
+   * @param {Function} cb    Called with a DataSnapshot for every event
+   * @param {Object} options (android only)
+   *                         { diff: true } to receive value events as
+   *                         patches against the previous value
+   *                         { chunkSize: n } to receive value events in
+   *                         chunks of n children; cb gets the chunk info
+   *                         ({index, complete}) as body.chunk. An array
+   *                         value arrives as array chunks, with the index
+   *                         of each chunk's first element in chunk.offset.
+   *                         A catch-up (body.catchUp) is chunked the same way
+   *                         { foregroundOnly: true } to stop syncing while
+   *                         the app is in the background; on resume cb gets
+   *                         one snapshot of the whole query with
+   *                         body.catchUp set instead of the missed events
+   * @return {Promise}
+   */
+  on(evt, cb, options={}) {
     const path = this.dbPath();
     const modifiers = this.dbModifiers();
-    return this.db.on(path, evt, cb)
-      .then(({callback, subscriptions}) => {
-        return promisify('on', FirestackDatabase)(path, modifiers, evt)
-                .then(() => {
-                  this.listeners[evt] = subscriptions;
-                  callback(this);
-                  return subscriptions;
-                })
-    });
+    this.db.expectHandle();
+    return this._nativeOn(path, modifiers, evt, options)
+      .then(({handle, initial}) => {
+        const key = Platform.OS === 'android' ? handle : path;
+        return this.db.on(key, evt, cb)
+          .then(({callback, subscriptions}) => {
+            this.listeners[evt] = subscriptions;
+            this.handles.push({evt, key, cb});
+            callback(this);
+            this.db.replay(key, evt, cb, initial);
+            this.db.handleExpected(key);
+            return subscriptions;
+          })
+      }, err => {
+        this.db.handleExpected(null);
+        throw err;
+      });
   }
 
-  once(evt='once', cb) {
+  once(evt='once', cb, options={}) {
     const path = this.dbPath();
     const modifiers = this.dbModifiers();
+    if (Platform.OS === 'android' && options.chunkSize) {
+      return this._onceChunked(path, modifiers, evt, cb, options);
+    }
     return promisify('onOnce', FirestackDatabase)(path, modifiers, evt)
       .then(({snapshot}) => new DataSnapshot(this, snapshot))
       .then(snapshot => {
@@ -230,6 +294,9 @@ class DatabaseRef extends ReferenceBase {
   }
 
   off(evt='', origCB) {
+    if (Platform.OS === 'android') {
+      return this._offHandles(evt, origCB);
+    }
     const path = this.dbPath();
     return this.db.off(path, evt, origCB)
       .then(({callback, subscriptions}) => {
@@ -256,6 +323,74 @@ class DatabaseRef extends ReferenceBase {
     return Promise.all(promises);
   }
 
+  // cb is called with every chunk, the promise resolves with the
+  // terminal (complete) chunk. The handle is chosen here so the chunks
+  // are subscribed to before the read starts
+  _onceChunked(path, modifiers, evt, cb, options) {
+    const handle = `once:js-${(onceCounter++).toString(36)}-${Date.now().toString(36)}|${path}`;
+    return new Promise((resolve, reject) => {
+      const done = () => {
+        this.db.off(handle, 'value', chunkCb);
+        this.db.offError(handle);
+      };
+      const chunkCb = (snapshot, body) => {
+        if (cb && typeof cb === 'function') {
+          cb(snapshot, body);
+        }
+        if (body.chunk && body.chunk.complete) {
+          done();
+          resolve(snapshot);
+        }
+      };
+      this.db.on(handle, 'value', chunkCb);
+      this.db.onError(handle, err => {
+        done();
+        reject(err);
+      });
+
+      promisify('onOnceWithOptions', FirestackDatabase)(path, modifiers, evt, {...options, handle})
+        .catch(err => {
+          done();
+          reject(err);
+        });
+    });
+  }
+
+  // Every android subscriber holds a reference on its native listener,
+  // so release one per subscription being removed
+  _offHandles(evt, origCB) {
+    const matches = this.handles
+      .filter(h => (!evt || h.evt === evt) && (!origCB || h.cb === origCB));
+    this.handles = this.handles.filter(h => matches.indexOf(h) < 0);
+
+    return Promise.all(matches.map(({evt, key, cb}) => {
+      return this.db.off(key, evt, cb)
+        .then(({callback, subscriptions}) => {
+          return promisify('off', FirestackDatabase)(key, evt)
+            .then(() => ({callback, subscriptions}))
+        })
+    }))
+    .then(results => {
+      Object.keys(this.listeners)
+        .filter(name => !this.handles.some(h => h.evt === name))
+        .forEach(name => delete this.listeners[name]);
+      if (this.handles.length === 0 && results.length > 0) {
+        results[0].callback(this);
+      }
+      return results.length > 0 ? results[results.length - 1].subscriptions : [];
+    })
+    .catch(err => {
+      console.error('Never get here', err);
+    })
+  }
+
+  _nativeOn(path, modifiers, evt, options) {
+    if (Platform.OS === 'android' && options && Object.keys(options).length > 0) {
+      return promisify('onWithOptions', FirestackDatabase)(path, modifiers, evt, options);
+    }
+    return promisify('on', FirestackDatabase)(path, modifiers, evt);
+  }
+
   // Sanitize value
   // As Firebase cannot store date objects. 
   _serializeValue(obj={}) {
@@ -371,6 +506,7 @@ export class Database extends Base {
 
     this.persistenceEnabled = false;
     this.successListener = null;
+    this.batchListener = null;
     this.errorListener = null;
     this.refs = {};
   }
@@ -397,18 +533,69 @@ export class Database extends Base {
     return promise;
   }
 
+  /**
+   * Apply several writes in as few round trips as possible
+   * @param {Array} ops [{ type: 'set'|'update'|'remove'|'push', path, value }]
+   * @return {Promise} resolves with { writes, refs } where refs are the paths created by push ops
+   */
+  batchWrite(ops=[]) {
+    const serialized = ops.map(({type, path, value}) => {
+      const ref = this.ref(path);
+      const op = {type, path: ref.dbPath()};
+      if (value !== undefined) {
+        op.value = (value !== null && typeof value === 'object') ? ref._serializeValue(value) : value;
+      }
+      return op;
+    });
+
+    if (Platform.OS === 'android') {
+      return this.whenReady(promisify('batchWrite', FirestackDatabase)(serialized));
+    }
+
+    // no native batching here, so run the writes one after another
+    const refs = [];
+    return serialized.reduce((prev, {type, path, value}) => prev.then(() => {
+      switch (type) {
+        case 'remove':
+          return promisify('remove', FirestackDatabase)(path);
+        case 'update':
+          return promisify('update', FirestackDatabase)(path, value);
+        case 'push':
+          return promisify('push', FirestackDatabase)(path, value)
+            .then(({ref}) => refs.push(ref));
+        default:
+          return promisify('set', FirestackDatabase)(path, value);
+      }
+    }), Promise.resolve())
+      .then(() => ({status: 'success', method: 'batchWrite', operations: ops.length, writes: ops.length, refs}));
+  }
+
   handleDatabaseEvent(evt) {
     const body = evt.body;
     const path = body.path;
     const evtName = body.eventName;
+    const key = body.handle || path;
+
+    const subscriptions = dbSubscriptions[key];
 
-    const subscriptions = dbSubscriptions[path];
+    if (!subscriptions && body.handle && dbPendingOns > 0) {
+      (dbPendingEvents[key] = dbPendingEvents[key] || []).push(evt);
+      return;
+    }
 
     if (subscriptions) {
-      const cbs = subscriptions[evtName];
+      const snapshot = body.diff ? this._applyDiff(key, body) : body.snapshot;
+      if (evtName === 'value' && !body.chunk) {
+        dbValueSnapshots[key] = snapshot;
+      }
+      // a catch-up after resuming a child_* listener is a value snapshot
+      // of the whole query, handed to that listener's callbacks
+      const cbs = (body.catchUp && !subscriptions[evtName]) ?
+        Object.keys(subscriptions).reduce((all, name) => all.concat(subscriptions[name]), []) :
+        (subscriptions[evtName] || []);
       cbs.forEach(cb => {
         if (cb && typeof(cb) === 'function') {
-          const snap = new DataSnapshot(this, body.snapshot);
+          const snap = new DataSnapshot(this, snapshot);
           this.log.debug('database_event received', path, evtName);
           cb(snap, body);
         }
@@ -416,8 +603,166 @@ export class Database extends Base {
     }
   }
 
+  // Catch a new subscriber up with a listener that was already running:
+  // the last value, or the existing children for child_added
+  replay(key, evt, cb, initial) {
+    if (evt === 'value' && dbValueSnapshots[key]) {
+      cb(new DataSnapshot(this, dbValueSnapshots[key]));
+    }
+    (initial || []).forEach(body => {
+      cb(new DataSnapshot(this, body.snapshot), body);
+    });
+  }
+
+  // Called before asking native for a listener handle, so the database
+  // events are listened to and anything emitted on a handle before its
+  // subscription exists is kept for handleExpected
+  expectHandle() {
+    dbPendingOns++;
+    this._listen();
+  }
+
+  // The subscription for key (null if the native call failed) is in
+  // place: deliver what arrived for it in the meantime
+  handleExpected(key) {
+    const pending = (key && dbPendingEvents[key]) || [];
+    delete dbPendingEvents[key];
+    dbPendingOns = Math.max(0, dbPendingOns - 1);
+    if (dbPendingOns === 0) {
+      dbPendingEvents = {};
+    }
+    pending.forEach(evt => this.handleDatabaseEvent(evt));
+  }
+
+  // Reapply a set/remove patch from a diff mode listener onto the
+  // last value we have for the subscription. Nodes along patched paths
+  // are copied so snapshots handed out earlier are left untouched.
+  _applyDiff(key, body) {
+    const prev = dbValueSnapshots[key] || {};
+    const copied = [];
+    const copy = (obj) => {
+      const clone = Array.isArray(obj) ? obj.slice() :
+        ((obj !== null && typeof obj === 'object') ? {...obj} : {});
+      copied.push(clone);
+      return clone;
+    };
+    let value = prev.value;
+
+    body.ops.forEach(({op, path: opPath, value: opValue}) => {
+      const keys = opPath === '' ? [] : opPath.split(separator);
+      if (keys.length === 0) {
+        value = op === 'set' ? opValue : null;
+        return;
+      }
+      if (copied.indexOf(value) < 0) {
+        value = copy(value);
+      }
+      let node = value;
+      keys.slice(0, -1).forEach(key => {
+        if (copied.indexOf(node[key]) < 0) {
+          node[key] = copy(node[key]);
+        }
+        node = node[key];
+      });
+      const last = keys[keys.length - 1];
+      if (op === 'set') {
+        node[last] = opValue;
+      } else {
+        delete node[last];
+      }
+    });
+
+    return {
+      ...body.snapshot,
+      value,
+      childKeys: body.snapshot.childKeys || prev.childKeys || [],
+    };
+  }
+
+  handleDatabaseEvents(batch) {
+    batch.events.forEach(evt => this.handleDatabaseEvent(evt));
+  }
+
+  /**
+   * (android only) Coalesce database events into one bridge call
+   * @param {Object} options { enabled, flushInterval (ms), maxBatchSize }
+   * @return {Promise}
+   */
+  setEventBatching(options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return this.whenReady(promisify('configureEventBatching', FirestackDatabase)(options));
+  }
+
+  /**
+   * (android only) Size the native pool that serializes snapshots. Past
+   * maxPending waiting snapshots new ones are dropped, never serialized
+   * on the main thread; a listener that lost an event gets a catch-up
+   * value snapshot (body.catchUp) once there is room
+   * @param {Object} options { threads, maxPending }
+   * @return {Promise} resolves with the settings and how many tasks were dropped
+   */
+  setSerialization(options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return this.whenReady(promisify('configureSerialization', FirestackDatabase)(options));
+  }
+
+  /**
+   * (android only) Bound the native cache that answers once('value') from
+   * an active on('value') listener on the same query
+   * @param {Object} options { maxBytes } (0 disables the cache)
+   * @return {Promise} resolves with the cache size and hit/miss counts
+   */
+  setSnapshotCache(options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return this.whenReady(promisify('configureSnapshotCache', FirestackDatabase)(options));
+  }
+
+  /**
+   * (android only) Choose which listeners are detached while the app is in
+   * the background
+   * @param {String} policy 'keep', 'foregroundOnly' (the default: only
+   *                        listeners added with { foregroundOnly: true }) or 'all'
+   * @return {Promise}
+   */
+  setBackgroundPolicy(policy='foregroundOnly') {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return this.whenReady(promisify('configureBackgroundPolicy', FirestackDatabase)({policy}));
+  }
+
+  /**
+   * (android only) Debug view of the native listeners currently attached
+   * @return {Promise} resolves with { count, references, leaked, paths }
+   */
+  getLiveListeners() {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('getLiveListeners', FirestackDatabase)();
+  }
+
   handleDatabaseError(evt) {
     this.log.debug('handleDatabaseError ->', evt);
+    const errorCb = evt.handle && dbErrorCallbacks[evt.handle];
+    if (errorCb) {
+      errorCb(evt.body);
+    }
+  }
+
+  onError(handle, cb) {
+    dbErrorCallbacks[handle] = cb;
+    this._listen();
+  }
+
+  offError(handle) {
+    delete dbErrorCallbacks[handle];
   }
 
   on(path, evt, cb) {
@@ -432,6 +777,17 @@ export class Database extends Base {
     }
     dbSubscriptions[key][evt].push(cb);
 
+    this._listen();
+
+    const callback = (ref) => {
+      const key = this._pathKey(ref.path);
+      this.refs[key] = ref;
+    }
+    const subscriptions = [this.successListener, this.errorListener];
+    return Promise.resolve({callback, subscriptions});
+  }
+
+  _listen() {
     if (!this.successListener) {
       this.successListener = FirestackDatabaseEvt
         .addListener(
@@ -439,19 +795,19 @@ export class Database extends Base {
           this.handleDatabaseEvent.bind(this));
     }
 
+    if (!this.batchListener) {
+      this.batchListener = FirestackDatabaseEvt
+        .addListener(
+          'database_events',
+          this.handleDatabaseEvents.bind(this));
+    }
+
     if (!this.errorListener) {
       this.errorListener = FirestackDatabaseEvt
         .addListener(
           'database_error', 
           this.handleDatabaseError.bind(this));
     }
-
-    const callback = (ref) => {
-      const key = this._pathKey(ref.path);
-      this.refs[key] = ref;
-    }
-    const subscriptions = [this.successListener, this.errorListener];
-    return Promise.resolve({callback, subscriptions});
   }
 
   off(path, evt, origCB) {
@@ -462,22 +818,32 @@ export class Database extends Base {
         dbSubscriptions[key] = {};
       } else if (dbSubscriptions[key][evt]) {
         if (origCB) {
-          dbSubscriptions[key][evt].splice(dbSubscriptions[key][evt].indexOf(origCB), 1);
+          const idx = dbSubscriptions[key][evt].indexOf(origCB);
+          if (idx >= 0) {
+            dbSubscriptions[key][evt].splice(idx, 1);
+          }
         } else {
           delete dbSubscriptions[key][evt];
         }
       }
 
+      if (!dbSubscriptions[key].value || dbSubscriptions[key].value.length === 0) {
+        delete dbValueSnapshots[key];
+      }
       if (Object.keys(dbSubscriptions[key]).length <= 0) {
         // there are no more subscriptions
         // so we can unwatch
         delete dbSubscriptions[key]
       }
-      if (Object.keys(dbSubscriptions).length == 0) {
+      if (Object.keys(dbSubscriptions).length == 0 && dbPendingOns === 0) {
         if (this.successListener) {
           this.successListener.remove();
           this.successListener = null;
         }
+        if (this.batchListener) {
+          this.batchListener.remove();
+          this.batchListener = null;
+        }
         if (this.errorListener) {
           this.errorListener.remove();
           this.errorListener = null; 
@@ -1,5 +1,5 @@
 
-import {NativeModules, NativeEventEmitter} from 'react-native';
+import {Platform, NativeModules, NativeEventEmitter} from 'react-native';
 const FirestackStorage = NativeModules.FirestackStorage;
 const FirestackStorageEvt = new NativeEventEmitter(FirestackStorage);
 
@@ -8,6 +8,10 @@ import { Base, ReferenceBase } from './base'
 
 console.log('FirestackStorage ---->', FirestackStorage);
 
+let uploadCounter = 0;
+const nextUploadId = () =>
+  `${Date.now().toString(36)}-${(uploadCounter++).toString(36)}-${Math.random().toString(36).slice(2, 8)}`;
+
 class StorageRef extends ReferenceBase {
   constructor(storage, path) {
     super(storage.firestack, path);
@@ -15,21 +19,44 @@ class StorageRef extends ReferenceBase {
     this.storage = storage;
   }
 
-  downloadUrl() {
+  /**
+   * @param {Object} options (android only) { urlOnly, cache }. Answers
+   *                         come from the native metadata cache while
+   *                         fresh; urlOnly skips fetching metadata
+   * @return {Promise}
+   */
+  downloadUrl(options={}) {
     const path = this.pathToString();
+    if (Platform.OS === 'android') {
+      return promisify('downloadUrlWithOptions', FirestackStorage)(this.storage.storageUrl, path, options);
+    }
     return promisify('downloadUrl', FirestackStorage)(this.storage.storageUrl, path);
   }
 
   /**
    * Downloads a reference to the device
    * @param {String} downloadPath Where to store the file
+   * @param {Object} options (android only) { resume, progressInterval (ms),
+   *                         progressDelta (percent) }. With resume, an
+   *                         interrupted download continues from the bytes
+   *                         already on disk the next time it is requested
    * @return {Promise}
    */
-  download (downloadPath, cb) {
+  download (downloadPath, cb, options={}) {
     let callback = cb;
     if (!callback || typeof callback !== 'function') {
       callback = (evt) => {};
     }
+    if (Platform.OS === 'android') {
+      // only progress for this file
+      const onEvent = callback;
+      const localPath = downloadPath.replace('file://', '');
+      callback = (evt) => {
+        if (!evt.localPath || evt.localPath === localPath) {
+          onEvent(evt);
+        }
+      };
+    }
 
     const listeners = [];
     listeners.push(this.storage._addListener('download_progress', callback));
@@ -37,7 +64,10 @@ class StorageRef extends ReferenceBase {
     listeners.push(this.storage._addListener('download_resumed', callback));
 
     const path = this.pathToString();
-    return promisify('downloadFile', FirestackStorage)(this.storage.storageUrl, path, downloadPath)
+    const download = Platform.OS === 'android' ?
+      promisify('downloadFileWithOptions', FirestackStorage)(this.storage.storageUrl, path, downloadPath.replace('file://', ''), options) :
+      promisify('downloadFile', FirestackStorage)(this.storage.storageUrl, path, downloadPath);
+    return download
       .then((res) => {
         console.log('res --->', res);
         listeners.forEach(this.storage._removeListener);
@@ -71,12 +101,30 @@ export class Storage extends Base {
 
   /**
    * Upload a filepath
+   * On android the upload gets an id (the returned promise's uploadId)
+   * for pauseUpload, resumeUpload and cancelUpload, survives the app
+   * being killed (see getPendingUploads) and waits its turn in the upload
+   * queue (see setUploadQueue)
    * @param  {string} name     The destination for the file
-   * @param  {string} filepath The local path of the file
+   * @param  {string} filepath The local path of the file, or on android a
+   *                           content:// uri (e.g. a gallery item), which is
+   *                           uploaded as is, without getRealPathFromURI
    * @param  {object} metadata An object containing metadata
+   * @param  {object} options  (android only) { priority: 'high'|'normal'|'low',
+   *                           progressInterval (ms), progressDelta (percent) }
+   *                           upload_progress events are sent no more often
+   *                           than both thresholds allow and carry
+   *                           bytesTransferred, totalBytes, bytesPerSecond
+   *                           and etaMs
+   *                           options.image { maxDimension, quality (0-100),
+   *                           format: 'jpeg'|'webp' } downscales and
+   *                           re-encodes a photo before it is queued,
+   *                           dropping its EXIF; a photo that can't be
+   *                           processed fails the upload, anything else
+   *                           goes up as it is with processed: false
    * @return {Promise}
    */
-  uploadFile(name, filepath, metadata={}, cb) {
+  uploadFile(name, filepath, metadata={}, cb, options={}) {
     let callback = cb;
     if (!callback || typeof callback !== 'function') {
       callback = (evt) => {}
@@ -84,6 +132,31 @@ export class Storage extends Base {
 
     filepath = filepath.replace("file://", "");
 
+    if (Platform.OS === 'android') {
+      const uploadId = nextUploadId();
+      // events from other uploads running at the same time are not ours
+      const forThisUpload = (evt) => {
+        if (evt.uploadId === uploadId) {
+          callback(evt);
+        }
+      };
+      const listeners = [];
+      listeners.push(this._addListener('upload_progress', forThisUpload));
+      listeners.push(this._addListener('upload_paused', forThisUpload));
+      listeners.push(this._addListener('upload_resumed', forThisUpload));
+
+      const promise = promisify('startUpload', FirestackStorage)(uploadId, this.storageUrl, name, filepath, metadata, options)
+        .then((res) => {
+          listeners.forEach(this._removeListener);
+          return res;
+        }, (err) => {
+          listeners.forEach(this._removeListener);
+          throw err;
+        });
+      promise.uploadId = uploadId;
+      return promise;
+    }
+
     const listeners = [];
     listeners.push(this._addListener('upload_progress', callback));
     listeners.push(this._addListener('upload_paused', callback));
@@ -95,6 +168,123 @@ export class Storage extends Base {
       });
   }
 
+  /**
+   * (android only) Pause, resume or cancel an upload by id. Resuming an
+   * upload that failed or was cut off by the app exiting continues from
+   * its upload session; its outcome arrives as an upload_complete or
+   * upload_error event
+   */
+  pauseUpload(uploadId) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('pauseUpload', FirestackStorage)(uploadId);
+  }
+
+  resumeUpload(uploadId) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('resumeUpload', FirestackStorage)(uploadId);
+  }
+
+  cancelUpload(uploadId) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('cancelUpload', FirestackStorage)(uploadId);
+  }
+
+  /**
+   * (android only) Unfinished uploads, including ones left over from a
+   * previous run of the app
+   * @return {Promise} resolves with { uploads: [{ uploadId, path, state, bytesTransferred, totalBytes, resumable }] }
+   */
+  getPendingUploads() {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('getPendingUploads', FirestackStorage)();
+  }
+
+  /**
+   * (android only) Download urls (and metadata unless urlOnly) for many
+   * paths in one bridge call
+   * @param {Array} paths
+   * @param {Object} options { urlOnly, cache }
+   * @return {Promise} resolves with { results: { path: result }, errors: { path: error } }
+   */
+  downloadUrls(paths, options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('downloadUrls', FirestackStorage)(this.storageUrl, paths, options);
+  }
+
+  /**
+   * (android only) A local copy of a storage file. Files are cached on
+   * disk by md5 hash, so one is only downloaded again when its content
+   * changed, not when its download url did
+   * @param {String} path
+   * @param {Object} options { cachedHash } (true trusts the remote hash
+   *                         in the metadata cache instead of re-reading it)
+   * @return {Promise} resolves with { localPath, md5hash, sizeBytes, cached }
+   */
+  getLocalFile(path, options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('getLocalFile', FirestackStorage)(this.storageUrl, path, options);
+  }
+
+  /**
+   * (android only) Size the on-disk cache behind getLocalFile
+   * @param {Object} options { maxBytes, clear }
+   * @return {Promise} resolves with the settings and hits, misses,
+   *                   bytesSaved and bytesDownloaded
+   */
+  setMediaCache(options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('configureMediaCache', FirestackStorage)(options);
+  }
+
+  /**
+   * (android only) Bound the persistent cache of download urls and
+   * metadata used by downloadUrl
+   * @param {Object} options { maxEntries, ttl (ms), clear }
+   * @return {Promise} resolves with the settings, entry count and hit/miss counts
+   */
+  setMetadataCache(options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('configureMetadataCache', FirestackStorage)(options);
+  }
+
+  /**
+   * (android only) Bound how many uploads run at once. While any run, an
+   * upload_throughput event reports per-upload and total bytes/s every
+   * throughputInterval ms
+   * @param {Object} options { maxConcurrent, throughputInterval (ms) }
+   * @return {Promise} resolves with the settings and running/queued counts
+   */
+  setUploadQueue(options={}) {
+    if (Platform.OS !== 'android') {
+      return Promise.resolve({status: 'unsupported'});
+    }
+    return promisify('configureUploadQueue', FirestackStorage)(options);
+  }
+
+  /**
+   * Subscribe to a storage event, e.g. upload_complete or upload_error
+   * @return {Object} the subscription
+   */
+  on(evt, cb) {
+    return this._addListener(evt, cb);
+  }
+
   getRealPathFromURI(uri) {
     return promisify('getRealPathFromURI', FirestackStorage)(uri);
   }